@@ -20,10 +20,18 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
 import chat.viska.R;
 import chat.viska.commons.DomUtils;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nonnull;
 import org.apache.commons.lang3.StringUtils;
 import org.w3c.dom.Document;
@@ -38,8 +46,37 @@ public class Application extends android.app.Application {
   public static final String KEY_NOTIF_CHANNEL_SYSTEM = "system";
   public static final String KEY_PREF_FIRST_RUN = "first-run";
 
-  private final List<PeerConnection.IceServer> iceServers = new ArrayList<>();
-  private PeerConnectionFactory webRtcFactory;
+  /**
+   * Preference: Name of the {@link PeerConnectionProfile} used for calls in lower case, or
+   * {@link #CALL_PROFILE_AUTO}.
+   */
+  public static final String KEY_PREF_CALL_PROFILE = "call-profile";
+  public static final String CALL_PROFILE_AUTO = "auto";
+
+  private static final String LOG_TAG = "Application";
+
+  private final Map<String, Long> warmUpTimings = new ConcurrentHashMap<>();
+  private final Single<List<PeerConnection.IceServer>> iceServers = Single.fromCallable(
+      () -> measure("ice-servers", this::initializeIceServers)
+  ).subscribeOn(Schedulers.io()).cache();
+  private final Single<PeerConnectionFactory> webRtcFactory = Single.fromCallable(
+      () -> measure("webrtc-native", this::initializeWebRtc)
+  ).map(
+      it -> measure("webrtc-factory", this::createWebRtcFactory)
+  ).subscribeOn(Schedulers.io()).cache();
+
+  /**
+   * Runs a stage of the warm-up and records how long it took.
+   */
+  private <T> T measure(@Nonnull final String stage, @Nonnull final Callable<T> task)
+      throws Exception {
+    final long start = SystemClock.elapsedRealtime();
+    final T result = task.call();
+    final long duration = SystemClock.elapsedRealtime() - start;
+    warmUpTimings.put(stage, duration);
+    Log.i(LOG_TAG, "Warm-up stage " + stage + " took " + duration + " ms.");
+    return result;
+  }
 
   private void initializeNotificationChannels() {
     if (Build.VERSION.SDK_INT >= 26) {
@@ -71,61 +108,75 @@ public class Application extends android.app.Application {
     }
   }
 
-  private void initializeIceServers() {
-    final Document xml;
-    try {
-      xml = DomUtils.readDocument(getResources().openRawResource(R.raw.ice));
-    } catch (Exception ex) {
-      throw new RuntimeException(ex);
-    }
-    synchronized (iceServers) {
-      iceServers.clear();
-      for (Node it : DomUtils.convertToList(xml.getDocumentElement().getElementsByTagName("url"))) {
-        final Element element = (Element) it;
-        final PeerConnection.IceServer.Builder builder = PeerConnection.IceServer.builder(
-            element.getTextContent()
-        );
-        final String username = element.getAttribute("username");
-        if (StringUtils.isNotBlank(username)) {
-          builder.setUsername(username);
-        }
-        final String password = element.getAttribute("password");
-        if (StringUtils.isNotBlank(password)) {
-          builder.setPassword(password);
-        }
-        iceServers.add(builder.createIceServer());
+  @Nonnull
+  private List<PeerConnection.IceServer> initializeIceServers() throws Exception {
+    final Document xml = DomUtils.readDocument(getResources().openRawResource(R.raw.ice));
+    final List<PeerConnection.IceServer> servers = new ArrayList<>();
+    for (Node it : DomUtils.convertToList(xml.getDocumentElement().getElementsByTagName("url"))) {
+      final Element element = (Element) it;
+      final PeerConnection.IceServer.Builder builder = PeerConnection.IceServer.builder(
+          element.getTextContent()
+      );
+      final String username = element.getAttribute("username");
+      if (StringUtils.isNotBlank(username)) {
+        builder.setUsername(username);
       }
+      final String password = element.getAttribute("password");
+      if (StringUtils.isNotBlank(password)) {
+        builder.setPassword(password);
+      }
+      servers.add(builder.createIceServer());
     }
+    return Collections.unmodifiableList(servers);
   }
 
-  private void initializeWebRtc() {
+  /**
+   * Loads the native libraries of WebRTC.
+   */
+  private boolean initializeWebRtc() {
     PeerConnectionFactory.initialize(
         PeerConnectionFactory.InitializationOptions.builder(this).createInitializationOptions()
     );
-    this.webRtcFactory = new PeerConnectionFactory(new PeerConnectionFactory.Options());
+    return true;
   }
 
   @Nonnull
-  public synchronized PeerConnectionFactory getWebRtcFactory() {
-    if (webRtcFactory == null) {
-      initializeWebRtc();
-    }
+  private PeerConnectionFactory createWebRtcFactory() {
+    return new PeerConnectionFactory(new PeerConnectionFactory.Options());
+  }
+
+  /**
+   * Gets the {@link PeerConnectionFactory}. It is built in the background right after the app
+   * starts, so the returned {@link Single} usually succeeds immediately.
+   */
+  @Nonnull
+  public Single<PeerConnectionFactory> getWebRtcFactory() {
     return webRtcFactory;
   }
 
+  /**
+   * Gets the ICE servers shipped with the app. They are parsed in the background right after the
+   * app starts.
+   */
   @Nonnull
-  public List<PeerConnection.IceServer> getBuiltInIceServers() {
-    synchronized (iceServers) {
-      if (iceServers.isEmpty()) {
-        initializeIceServers();
-      }
-      return iceServers;
-    }
+  public Single<List<PeerConnection.IceServer>> getBuiltInIceServers() {
+    return iceServers;
+  }
+
+  /**
+   * Gets how long each stage of the warm-up took in milliseconds. Stages not yet finished are
+   * absent.
+   */
+  @Nonnull
+  public Map<String, Long> getWarmUpTimings() {
+    return Collections.unmodifiableMap(warmUpTimings);
   }
 
   @Override
   public void onCreate() {
     super.onCreate();
     initializeNotificationChannels();
+    iceServers.subscribe(it -> {}, ex -> Log.e(LOG_TAG, "Failed to load ICE servers.", ex));
+    webRtcFactory.subscribe(it -> {}, ex -> Log.e(LOG_TAG, "Failed to initialize WebRTC.", ex));
   }
 }
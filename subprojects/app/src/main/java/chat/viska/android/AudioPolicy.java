@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+
+/**
+ * Set of Opus parameters for a {@link Call}, selected according to the network when the call
+ * starts. The local SDP is rewritten by {@link #rewrite(String)} before it is applied, while
+ * {@link #getMaxBitrate()} is also the ceiling for {@link BitrateController}.
+ */
+public enum AudioPolicy {
+
+  /**
+   * Fullband voice for unmetered networks like Wi-Fi.
+   */
+  UNMETERED(40000, 20, false),
+
+  /**
+   * Wideband voice with silence suppression for metered networks.
+   */
+  METERED(24000, 20, true),
+
+  /**
+   * Narrowband voice in larger packets for slow networks like 2G.
+   */
+  CONSTRAINED(12000, 40, true);
+
+  /**
+   * Lower bound of the bitrate in bits per second.
+   */
+  public static final int MIN_BITRATE = 8000;
+
+  /**
+   * Downstream bandwidth in kbps below which a network is considered slow.
+   */
+  private static final int SLOW_BANDWIDTH = 256;
+
+  private static final String LOG_TAG = "AudioPolicy";
+  private static final String LINE_BREAK = "\r\n";
+  private static final Pattern PATTERN_OPUS = Pattern.compile(
+      "^a=rtpmap:(\\d+) opus/48000", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE
+  );
+
+  private final int maxBitrate;
+  private final int packetTime;
+  private final boolean discontinuous;
+
+  AudioPolicy(final int maxBitrate, final int packetTime, final boolean discontinuous) {
+    this.maxBitrate = maxBitrate;
+    this.packetTime = packetTime;
+    this.discontinuous = discontinuous;
+  }
+
+  /**
+   * Selects a policy by the active network. Unmetered networks use {@link #UNMETERED}, metered
+   * ones use {@link #CONSTRAINED} if their downstream bandwidth is below 256 kbps or
+   * {@link #METERED} otherwise.
+   */
+  @Nonnull
+  public static AudioPolicy select(@Nonnull final Context context) {
+    final ConnectivityManager manager = (ConnectivityManager) context.getSystemService(
+        Context.CONNECTIVITY_SERVICE
+    );
+    if (manager == null) {
+      return METERED;
+    }
+    final Network network = manager.getActiveNetwork();
+    final NetworkCapabilities capabilities = network == null
+        ? null
+        : manager.getNetworkCapabilities(network);
+    if (capabilities == null) {
+      return METERED;
+    } else if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) {
+      return UNMETERED;
+    } else if (capabilities.getLinkDownstreamBandwidthKbps() > 0
+        && capabilities.getLinkDownstreamBandwidthKbps() < SLOW_BANDWIDTH) {
+      return CONSTRAINED;
+    } else {
+      return METERED;
+    }
+  }
+
+  /**
+   * Gets the maximum average bitrate of Opus in bits per second.
+   */
+  public int getMaxBitrate() {
+    return maxBitrate;
+  }
+
+  /**
+   * Sets {@code maxaveragebitrate}, {@code useinbandfec} and {@code usedtx} of the Opus
+   * {@code a=fmtp} and the {@code a=ptime} of the audio section, keeping any other parameters.
+   * An SDP without Opus is returned as is.
+   */
+  @Nonnull
+  public String rewrite(@Nonnull final String sdp) {
+    final Matcher matcher = PATTERN_OPUS.matcher(sdp);
+    if (!matcher.find()) {
+      return sdp;
+    }
+    final String payloadType = matcher.group(1);
+    final String rtpmapPrefix = "a=rtpmap:" + payloadType + ' ';
+    final String fmtpPrefix = "a=fmtp:" + payloadType + ' ';
+    final boolean hasFmtp = sdp.contains(LINE_BREAK + fmtpPrefix);
+
+    final StringBuilder result = new StringBuilder(sdp.length() + 128);
+    boolean isAudio = false;
+    for (String line : sdp.split(LINE_BREAK)) {
+      if (line.startsWith("m=")) {
+        isAudio = line.startsWith("m=audio");
+      }
+      if (isAudio && line.startsWith("a=ptime:")) {
+        continue;
+      }
+      if (line.startsWith(fmtpPrefix)) {
+        result.append(fmtpPrefix).append(rewriteFormat(line.substring(fmtpPrefix.length())));
+      } else {
+        result.append(line);
+      }
+      result.append(LINE_BREAK);
+      if (line.startsWith(rtpmapPrefix)) {
+        if (!hasFmtp) {
+          result.append(fmtpPrefix).append(rewriteFormat("")).append(LINE_BREAK);
+        }
+        result.append("a=ptime:").append(packetTime).append(LINE_BREAK);
+      }
+    }
+    Log.i(
+        LOG_TAG,
+        "Using " + this + ": maxaveragebitrate=" + maxBitrate + " ptime=" + packetTime
+            + " usedtx=" + (discontinuous ? 1 : 0)
+    );
+    return result.toString();
+  }
+
+  @Nonnull
+  private String rewriteFormat(@Nonnull final String format) {
+    final Map<String, String> parameters = new LinkedHashMap<>();
+    for (String it : format.split(";")) {
+      final int separator = it.indexOf('=');
+      if (separator > 0) {
+        parameters.put(it.substring(0, separator).trim(), it.substring(separator + 1).trim());
+      }
+    }
+    parameters.put("maxaveragebitrate", Integer.toString(maxBitrate));
+    parameters.put("useinbandfec", "1");
+    parameters.put("usedtx", discontinuous ? "1" : "0");
+    final StringBuilder result = new StringBuilder();
+    for (Map.Entry<String, String> it : parameters.entrySet()) {
+      if (result.length() > 0) {
+        result.append(';');
+      }
+      result.append(it.getKey()).append('=').append(it.getValue());
+    }
+    return result.toString();
+  }
+}
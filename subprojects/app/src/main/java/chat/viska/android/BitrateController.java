@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.util.Log;
+import javax.annotation.Nonnull;
+import org.webrtc.MediaStreamTrack;
+import org.webrtc.PeerConnection;
+import org.webrtc.RtpParameters;
+import org.webrtc.RtpSender;
+
+/**
+ * Adjusts the maximum bitrate of the audio senders of a {@link PeerConnection} according to the
+ * latest sample of {@link CallStats}. The senders are capped at {@link AudioPolicy#getMaxBitrate()}
+ * when the media starts. Afterwards the bitrate is cut by a quarter when the sent audio is lossy
+ * or the link is slow and raised by a tenth when it is clean, within
+ * {@link AudioPolicy#MIN_BITRATE} and {@link AudioPolicy#getMaxBitrate()}.
+ */
+class BitrateController {
+
+  /**
+   * Packet loss above which the bitrate is cut.
+   */
+  private static final float HIGH_LOSS = 0.1f;
+
+  /**
+   * Packet loss below which the bitrate may be raised.
+   */
+  private static final float LOW_LOSS = 0.02f;
+
+  /**
+   * Round-trip time in milliseconds above which the bitrate is cut.
+   */
+  private static final int HIGH_RTT = 500;
+
+  /**
+   * Round-trip time in milliseconds below which the bitrate may be raised.
+   */
+  private static final int LOW_RTT = 300;
+
+  private static final String LOG_TAG = "BitrateController";
+
+  private final PeerConnection peerConnection;
+  private final AudioPolicy policy;
+  private final String id;
+  private int bitrate;
+  private long lastSample = -1;
+  private boolean isStarted = false;
+
+  BitrateController(@Nonnull final PeerConnection peerConnection,
+                    @Nonnull final AudioPolicy policy,
+                    @Nonnull final String id) {
+    this.peerConnection = peerConnection;
+    this.policy = policy;
+    this.id = id;
+    this.bitrate = policy.getMaxBitrate();
+  }
+
+  /**
+   * Caps the senders at the maximum bitrate of the {@link AudioPolicy} unless already done. Must
+   * run on the thread owning the {@link PeerConnection} once the media has started.
+   */
+  void start() {
+    if (isStarted) {
+      return;
+    }
+    isStarted = true;
+    Log.i(LOG_TAG, "Call " + id + ": bitrate capped at " + bitrate + " bps");
+    apply();
+  }
+
+  /**
+   * Adapts the bitrate to the latest sample unless it is already considered. The loss is the one
+   * of the sent audio reported by the remote end, since that is what the bitrate of the senders
+   * affects. Must run on the thread owning the {@link PeerConnection}.
+   */
+  void adapt(@Nonnull final CallStats stats) {
+    final int size = stats.size();
+    if (size == 0 || stats.getTotal() == lastSample) {
+      return;
+    }
+    lastSample = stats.getTotal();
+    final float loss = stats.getRemotePacketLoss(size - 1);
+    final int roundTripTime = stats.getRoundTripTime(size - 1);
+
+    final int target;
+    if (loss > HIGH_LOSS || roundTripTime > HIGH_RTT) {
+      target = Math.max(AudioPolicy.MIN_BITRATE, bitrate * 3 / 4);
+    } else if (loss < LOW_LOSS && roundTripTime < LOW_RTT) {
+      target = Math.min(policy.getMaxBitrate(), bitrate * 11 / 10);
+    } else {
+      target = bitrate;
+    }
+    if (target == bitrate) {
+      return;
+    }
+    Log.i(
+        LOG_TAG,
+        "Call " + id + ": remote loss=" + loss + " rtt=" + roundTripTime + " ms, bitrate "
+            + bitrate + " -> " + target + " bps"
+    );
+    bitrate = target;
+    apply();
+  }
+
+  private void apply() {
+    for (RtpSender sender : peerConnection.getSenders()) {
+      final MediaStreamTrack track = sender.track();
+      if (track == null || !"audio".equals(track.kind())) {
+        continue;
+      }
+      final RtpParameters parameters = sender.getParameters();
+      for (RtpParameters.Encoding encoding : parameters.encodings) {
+        encoding.maxBitrateBps = bitrate;
+      }
+      if (!sender.setParameters(parameters)) {
+        Log.w(LOG_TAG, "Call " + id + ": failed to set the bitrate.");
+      }
+    }
+  }
+
+  /**
+   * Gets the current maximum bitrate in bits per second.
+   */
+  int getBitrate() {
+    return bitrate;
+  }
+}
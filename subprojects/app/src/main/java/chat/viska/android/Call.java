@@ -0,0 +1,685 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.os.SystemClock;
+import android.util.Log;
+import chat.viska.commons.DisposablesBin;
+import chat.viska.commons.reactive.MutableReactiveObject;
+import chat.viska.commons.reactive.ReactiveObject;
+import chat.viska.xmpp.Jid;
+import chat.viska.xmpp.Session;
+import chat.viska.xmpp.StanzaErrorException;
+import chat.viska.xmpp.plugins.webrtc.WebRtcPlugin;
+import io.reactivex.Completable;
+import io.reactivex.Maybe;
+import io.reactivex.Observable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.subjects.UnicastSubject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import org.webrtc.AudioSource;
+import org.webrtc.AudioTrack;
+import org.webrtc.DataChannel;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.MediaStream;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RtpReceiver;
+import org.webrtc.SessionDescription;
+
+/**
+ * Audio call owned by a {@link CallEngine}. It survives the user interface, which only attaches
+ * to it and observes {@link #getState()}.
+ */
+public class Call {
+
+  public enum State {
+
+    /**
+     * The {@link PeerConnection} is being built.
+     */
+    INITIALIZED,
+
+    /**
+     * An inbound call is waiting to be answered.
+     */
+    RINGING,
+
+    NEGOTIATING,
+    STREAMING,
+
+    /**
+     * The call is over. No further changes will happen.
+     */
+    ENDED
+  }
+
+  private class PeerConnectionObserver implements PeerConnection.Observer {
+
+    @Override
+    public void onSignalingChange(@Nonnull final PeerConnection.SignalingState state) {}
+
+    @Override
+    public void onIceConnectionChange(final PeerConnection.IceConnectionState state) {
+      Log.d(LOG_TAG, "IceConnectionState is " + state);
+      switch (state) {
+        case CONNECTED:
+        case COMPLETED:
+          onResumed();
+          timeline.record(CallTimeline.Event.ICE_CONNECTED);
+          changeState(State.STREAMING);
+          break;
+        case DISCONNECTED:
+          onInterrupted();
+          break;
+        case FAILED:
+          onInterrupted();
+          if (outbound) {
+            restartIce(false);
+          }
+          break;
+        case CLOSED:
+          end(null);
+          break;
+        default:
+          break;
+      }
+    }
+
+    @Override
+    public void onIceConnectionReceivingChange(final boolean b) {}
+
+    @Override
+    public void onIceGatheringChange(@Nonnull final PeerConnection.IceGatheringState state) {
+      Log.d(LOG_TAG, "IceGatheringState is " + state);
+      if (state == PeerConnection.IceGatheringState.COMPLETE) {
+        timeline.record(CallTimeline.Event.GATHERING_COMPLETE);
+      }
+    }
+
+    @Override
+    public void onIceCandidate(@Nonnull final IceCandidate candidate) {
+      localCandidates.onNext(candidate);
+    }
+
+    @Override
+    public void onIceCandidatesRemoved(final IceCandidate[] candidates) {}
+
+    @Override
+    public void onAddStream(final MediaStream stream) {}
+
+    @Override
+    public void onRemoveStream(final MediaStream stream) {}
+
+    @Override
+    public void onDataChannel(final DataChannel dataChannel) {}
+
+    @Override
+    public void onRenegotiationNeeded() {}
+
+    @Override
+    public void onAddTrack(final RtpReceiver rtpReceiver, final MediaStream[] mediaStreams) {}
+  }
+
+  private class SdpObserver implements org.webrtc.SdpObserver {
+
+    @Override
+    public void onCreateSuccess(@Nonnull final SessionDescription created) {
+      timeline.record(CallTimeline.Event.SDP_CREATED);
+      final SessionDescription sdp = new SessionDescription(
+          created.type,
+          audioPolicy.rewrite(created.description)
+      );
+      peerConnection.setLocalDescription(this, sdp);
+      if (outbound || sdp.type == SessionDescription.Type.OFFER) {
+        sendLocalSdp(sdp);
+        return;
+      }
+      synchronized (Call.this) {
+        if (!answered) {
+          pendingAnswer = sdp;
+          return;
+        }
+      }
+      sendLocalSdp(sdp);
+    }
+
+    @Override
+    public void onSetSuccess() {}
+
+    @Override
+    public void onCreateFailure(String s) {
+      end(new Exception(s));
+    }
+
+    @Override
+    public void onSetFailure(String s) {
+      end(new Exception(s));
+    }
+  }
+
+  private static final String LOG_TAG = "WebRTC";
+
+  /**
+   * Maximum time in milliseconds the media may stay interrupted before the call is ended.
+   */
+  public static final long INTERRUPTION_TIMEOUT = 30000;
+
+  static final MediaConstraints CONSTRAINTS = new MediaConstraints();
+  private static final MediaConstraints ICE_RESTART_CONSTRAINTS = new MediaConstraints();
+
+  static {
+    CONSTRAINTS.mandatory.add(new MediaConstraints.KeyValuePair("audio", "true"));
+    CONSTRAINTS.mandatory.add(new MediaConstraints.KeyValuePair("video", "false"));
+    ICE_RESTART_CONSTRAINTS.mandatory.addAll(CONSTRAINTS.mandatory);
+    ICE_RESTART_CONSTRAINTS.mandatory.add(new MediaConstraints.KeyValuePair("IceRestart", "true"));
+  }
+
+  private final CallEngine engine;
+  private final Session session;
+  private final WebRtcPlugin plugin;
+  private final String id;
+  private final Jid remoteJid;
+  private final boolean outbound;
+  private final MutableReactiveObject<State> state = new MutableReactiveObject<>(
+      State.INITIALIZED
+  );
+  private final DisposablesBin bin = new DisposablesBin();
+  private final CallTimeline timeline = new CallTimeline();
+  private final CallStats stats = new CallStats();
+  private final SdpObserver sdpObserver = new SdpObserver();
+  private volatile UnicastSubject<IceCandidate> localCandidates = UnicastSubject.create();
+  private final AtomicBoolean isTrickling = new AtomicBoolean(false);
+  private final AtomicBoolean isCreated = new AtomicBoolean(false);
+  private final AtomicBoolean isRestartPending = new AtomicBoolean(false);
+  @GuardedBy("itself")
+  private final List<IceCandidate> pendingRemoteCandidates = new ArrayList<>();
+  @GuardedBy("pendingRemoteCandidates")
+  private boolean hasRemoteSdp = false;
+  private PeerConnection peerConnection;
+  private AudioSource audioSource;
+  private AudioTrack audioTrack;
+  @GuardedBy("this")
+  private SessionDescription pendingAnswer;
+  @GuardedBy("this")
+  private boolean answered = false;
+  private volatile Throwable error;
+  private volatile StatsSource statsSource;
+  private Disposable sampling;
+  private volatile AudioPolicy audioPolicy = AudioPolicy.METERED;
+  private BitrateController bitrateController;
+  @GuardedBy("this")
+  private long interruptedSince = -1;
+  @GuardedBy("this")
+  private Disposable giveUpTimer;
+  private volatile long lastInterruption = -1;
+  private volatile boolean isIceConnected = false;
+
+  Call(@Nonnull final CallEngine engine,
+       @Nonnull final Session session,
+       @Nonnull final String id,
+       @Nonnull final Jid remoteJid,
+       final boolean outbound) {
+    this.engine = engine;
+    this.session = session;
+    this.plugin = session.getPluginManager().getPlugin(WebRtcPlugin.class);
+    this.id = id;
+    this.remoteJid = remoteJid;
+    this.outbound = outbound;
+  }
+
+  /**
+   * Takes over a {@link PeerConnection} and starts the negotiation. An inbound call is negotiated
+   * early: the answer is created and ICE gathering starts while {@link State#RINGING}, with the
+   * audio track disabled and nothing sent to the remote end until {@link #answer()}.
+   * @param relay Observer which {@code peerConnection} was created with.
+   */
+  void start(@Nonnull final PeerConnectionFactory factory,
+             @Nonnull final PeerConnection peerConnection,
+             @Nonnull final PeerConnectionRelay relay,
+             @Nonnull final AudioPolicy audioPolicy,
+             @Nullable final SessionDescription remoteOffer) {
+    if (state.getValue() == State.ENDED) {
+      peerConnection.dispose();
+      return;
+    }
+    this.audioPolicy = audioPolicy;
+    this.peerConnection = peerConnection;
+    relay.setDelegate(new PeerConnectionObserver());
+    bitrateController = new BitrateController(peerConnection, audioPolicy, id);
+    if (statsSource == null) {
+      statsSource = new PeerConnectionStatsSource(peerConnection);
+    }
+    bin.add(state.getStream().observeOn(engine.getScheduler()).subscribe(it -> {
+      if (it == State.STREAMING) {
+        startSampling();
+      } else {
+        stopSampling();
+      }
+    }));
+    bin.add(plugin.getEventStream(id).subscribe(event -> {
+      if (event instanceof WebRtcPlugin.SdpReceivedEvent) {
+        onRemoteSdp(((WebRtcPlugin.SdpReceivedEvent) event).getSdp());
+      } else if (event instanceof WebRtcPlugin.IceCandidateReceivedEvent) {
+        addRemoteCandidate(((WebRtcPlugin.IceCandidateReceivedEvent) event).getCandidate());
+      } else if (event instanceof WebRtcPlugin.SessionClosingEvent) {
+        end(null);
+      }
+    }));
+    if (outbound) {
+      changeState(State.NEGOTIATING);
+      peerConnection.addStream(createLocalStream(factory));
+      peerConnection.createOffer(sdpObserver, CONSTRAINTS);
+    } else {
+      if (remoteOffer != null) {
+        setRemoteSdp(remoteOffer);
+      }
+      changeState(State.RINGING);
+      peerConnection.addStream(createLocalStream(factory));
+      audioTrack.setEnabled(false);
+      peerConnection.createAnswer(sdpObserver, new MediaConstraints());
+    }
+  }
+
+  /**
+   * Starts polling {@link #statsSource} every {@link CallEngine#getStatsInterval()} and adapting
+   * the bitrate to the samples. Must run on the engine thread.
+   */
+  private void startSampling() {
+    if (sampling != null && !sampling.isDisposed()) {
+      return;
+    }
+    bitrateController.start();
+    sampling = Observable.interval(
+        engine.getStatsInterval(),
+        TimeUnit.MILLISECONDS,
+        engine.getScheduler()
+    ).subscribe(it -> {
+      bitrateController.adapt(stats);
+      statsSource.collect(stats);
+    });
+  }
+
+  /**
+   * Must run on the engine thread.
+   */
+  private void stopSampling() {
+    if (sampling != null) {
+      sampling.dispose();
+      sampling = null;
+    }
+  }
+
+  @Nonnull
+  private MediaStream createLocalStream(@Nonnull final PeerConnectionFactory factory) {
+    audioSource = factory.createAudioSource(CONSTRAINTS);
+    audioTrack = factory.createAudioTrack(UUID.randomUUID().toString(), audioSource);
+    final MediaStream stream = factory.createLocalMediaStream(UUID.randomUUID().toString());
+    stream.addTrack(audioTrack);
+    return stream;
+  }
+
+  /**
+   * Sends the local SDP right after it is created without waiting for the ICE gathering to
+   * complete. The {@link IceCandidate}s are trickled afterwards. Only the first offer of an
+   * outbound call that reaches the remote end creates the session there, later ones renegotiate
+   * it. If the offer is lost, a new one is created with an ICE restart after reconnecting since
+   * the network has probably changed, while a lost answer is simply sent again.
+   */
+  private void sendLocalSdp(@Nonnull final SessionDescription sdp) {
+    final boolean creating = outbound && !isCreated.get();
+    timeline.record(CallTimeline.Event.SDP_SENT);
+    bin.add(plugin.sendSdp(remoteJid, id, sdp, creating).subscribe(() -> {
+      timeline.record(CallTimeline.Event.SDP_ACKED);
+      if (creating) {
+        isCreated.set(true);
+      }
+      if (sdp.type == SessionDescription.Type.ANSWER) {
+        startTrickling();
+      }
+    }, ex -> onSignalingError(ex, () -> {
+      if (sdp.type == SessionDescription.Type.OFFER) {
+        Log.i(LOG_TAG, "Restarting ICE of call " + id + ".");
+        peerConnection.createOffer(sdpObserver, ICE_RESTART_CONSTRAINTS);
+      } else {
+        sendLocalSdp(sdp);
+      }
+    })));
+  }
+
+  /**
+   * Handles a failed signaling IQ. An error returned by the remote end ends the call. Otherwise
+   * the IQ was probably lost with the connection, e.g. during a network handover, so
+   * {@code retry} runs on the engine thread once the XMPP session is online again. The call is
+   * still ended after {@link #INTERRUPTION_TIMEOUT} if ICE is not connected meanwhile.
+   */
+  private void onSignalingError(@Nonnull final Throwable cause, @Nonnull final Runnable retry) {
+    final State current = state.getValue();
+    if (cause instanceof StanzaErrorException
+        || (current != State.NEGOTIATING && current != State.STREAMING)) {
+      end(cause);
+      return;
+    }
+    Log.w(LOG_TAG, "Signaling of call " + id + " failed, retrying after reconnecting.", cause);
+    if (!isIceConnected) {
+      onInterrupted();
+    }
+    bin.add(awaitOnline(true).subscribe(it -> {
+      if (state.getValue() != State.ENDED) {
+        retry.run();
+      }
+    }));
+  }
+
+  /**
+   * Emits on the engine thread once the XMPP session is online.
+   * @param reconnecting Whether to wait for the session to go offline and then online again. The
+   *        current state is then ignored since the connection may be about to be killed, e.g.
+   *        right after the network is lost.
+   */
+  @Nonnull
+  private Maybe<Session.State> awaitOnline(final boolean reconnecting) {
+    final Observable<Session.State> states = session.getState().getStream();
+    return (reconnecting ? states.skipWhile(it -> it == Session.State.ONLINE) : states)
+        .filter(it -> it == Session.State.ONLINE)
+        .firstElement()
+        .observeOn(engine.getScheduler());
+  }
+
+  /**
+   * Records the start of an interruption of the media and schedules ending the call in case ICE
+   * does not connect again within {@link #INTERRUPTION_TIMEOUT}.
+   */
+  private void onInterrupted() {
+    isIceConnected = false;
+    synchronized (this) {
+      if (interruptedSince < 0) {
+        interruptedSince = SystemClock.elapsedRealtime();
+      }
+      if (giveUpTimer != null) {
+        return;
+      }
+      giveUpTimer = Completable.timer(
+          INTERRUPTION_TIMEOUT,
+          TimeUnit.MILLISECONDS,
+          engine.getScheduler()
+      ).subscribe(() -> end(new Exception(
+          "Connection lost for more than " + INTERRUPTION_TIMEOUT + " ms."
+      )));
+    }
+  }
+
+  /**
+   * Cancels ending the call and logs how long the media was interrupted.
+   */
+  private void onResumed() {
+    isIceConnected = true;
+    synchronized (this) {
+      if (giveUpTimer != null) {
+        giveUpTimer.dispose();
+        giveUpTimer = null;
+      }
+      if (interruptedSince >= 0) {
+        lastInterruption = SystemClock.elapsedRealtime() - interruptedSince;
+        interruptedSince = -1;
+        Log.i(LOG_TAG, "Call " + id + " resumed after " + lastInterruption + " ms.");
+      }
+    }
+  }
+
+  /**
+   * Applies an SDP received after the call started. An offer means the remote end is
+   * renegotiating, e.g. restarting ICE after its network changed, and is answered right away.
+   */
+  private void onRemoteSdp(@Nonnull final SessionDescription sdp) {
+    setRemoteSdp(sdp);
+    if (sdp.type == SessionDescription.Type.OFFER) {
+      Log.i(LOG_TAG, "Call " + id + " is renegotiated by the remote end.");
+      peerConnection.createAnswer(sdpObserver, new MediaConstraints());
+    } else if (sdp.type == SessionDescription.Type.ANSWER) {
+      startTrickling();
+    }
+  }
+
+  /**
+   * Restarts ICE and sends a new offer once the XMPP session is online. The media session is kept
+   * alive during the restart. Does nothing while ringing or if a restart is already pending.
+   * @param reconnecting Whether the XMPP connection is being killed, in which case the offer is
+   *        only sent after the session has gone offline and come back online.
+   */
+  void restartIce(final boolean reconnecting) {
+    final State current = state.getValue();
+    if (current != State.NEGOTIATING && current != State.STREAMING) {
+      return;
+    }
+    if (isRestartPending.getAndSet(true)) {
+      return;
+    }
+    bin.add(awaitOnline(reconnecting).subscribe(it -> {
+      isRestartPending.set(false);
+      if (state.getValue() == State.ENDED) {
+        return;
+      }
+      Log.i(LOG_TAG, "Restarting ICE of call " + id + ".");
+      peerConnection.createOffer(sdpObserver, ICE_RESTART_CONSTRAINTS);
+    }));
+  }
+
+  /**
+   * Starts sending the local {@link IceCandidate}s. Candidates gathered before this are buffered.
+   * The caller only starts trickling after receiving the answer, otherwise the candidates may
+   * arrive before the callee is ready to receive them. Candidates gathered after an ICE restart
+   * are sent through the same stream. If sending fails, the candidates not sent yet are dropped
+   * and trickling starts over on a new stream after reconnecting.
+   */
+  private void startTrickling() {
+    if (isTrickling.getAndSet(true)) {
+      return;
+    }
+    bin.add(plugin.trickleIceCandidates(remoteJid, id, localCandidates).subscribe(() -> {}, ex -> {
+      localCandidates = UnicastSubject.create();
+      isTrickling.set(false);
+      onSignalingError(ex, this::startTrickling);
+    }));
+  }
+
+  private void setRemoteSdp(@Nonnull final SessionDescription sdp) {
+    peerConnection.setRemoteDescription(sdpObserver, sdp);
+    synchronized (pendingRemoteCandidates) {
+      hasRemoteSdp = true;
+      for (IceCandidate it : pendingRemoteCandidates) {
+        peerConnection.addIceCandidate(it);
+      }
+      pendingRemoteCandidates.clear();
+    }
+  }
+
+  private void addRemoteCandidate(@Nonnull final IceCandidate candidate) {
+    synchronized (pendingRemoteCandidates) {
+      if (!hasRemoteSdp) {
+        pendingRemoteCandidates.add(candidate);
+        return;
+      }
+    }
+    peerConnection.addIceCandidate(candidate);
+  }
+
+  /**
+   * Changes the state unless the call has ended, so that a late event cannot bring an ended call
+   * back.
+   */
+  private void changeState(@Nonnull final State next) {
+    synchronized (state) {
+      if (state.getValue() != State.ENDED) {
+        state.changeValue(next);
+      }
+    }
+  }
+
+  /**
+   * Ends the call and releases all resources. The teardown runs on the engine thread because it
+   * must not happen on the WebRTC signaling thread.
+   * @param cause Why the call ended, or {@code null} if it ended normally.
+   */
+  void end(@Nullable final Throwable cause) {
+    synchronized (state) {
+      if (state.getValue() == State.ENDED) {
+        return;
+      }
+      error = cause;
+      state.changeValue(State.ENDED);
+    }
+    if (cause != null) {
+      Log.w(LOG_TAG, "Call " + id + " failed.", cause);
+    }
+    engine.execute(() -> {
+      bin.clear();
+      synchronized (this) {
+        if (giveUpTimer != null) {
+          giveUpTimer.dispose();
+          giveUpTimer = null;
+        }
+      }
+      stopSampling();
+      localCandidates.onComplete();
+      if (peerConnection != null) {
+        peerConnection.close();
+        peerConnection.dispose();
+      }
+      if (audioSource != null) {
+        audioSource.dispose();
+      }
+      engine.remove(this);
+    });
+  }
+
+  /**
+   * Answers an inbound call. Since the answer is prepared while ringing, this only enables the
+   * audio track and sends the answer, or sends it as soon as it is created.
+   */
+  public void answer() {
+    if (outbound) {
+      return;
+    }
+    synchronized (state) {
+      if (state.getValue() != State.RINGING) {
+        return;
+      }
+      state.changeValue(State.NEGOTIATING);
+    }
+    engine.execute(() -> {
+      if (state.getValue() == State.ENDED) {
+        return;
+      }
+      audioTrack.setEnabled(true);
+      final SessionDescription sdp;
+      synchronized (this) {
+        answered = true;
+        sdp = pendingAnswer;
+        pendingAnswer = null;
+      }
+      if (sdp != null) {
+        sendLocalSdp(sdp);
+      }
+    });
+  }
+
+  /**
+   * Notifies the remote end and ends the call.
+   */
+  public void hang() {
+    if (state.getValue() == State.ENDED) {
+      return;
+    }
+    plugin.closeSession(remoteJid, id).subscribe(() -> {}, ex -> {});
+    end(null);
+  }
+
+  @Nonnull
+  public String getId() {
+    return id;
+  }
+
+  @Nonnull
+  public Session getSession() {
+    return session;
+  }
+
+  @Nonnull
+  public Jid getRemoteJid() {
+    return remoteJid;
+  }
+
+  public boolean isOutbound() {
+    return outbound;
+  }
+
+  @Nonnull
+  public ReactiveObject<State> getState() {
+    return state;
+  }
+
+  /**
+   * Gets the quality samples of this call.
+   */
+  @Nonnull
+  public CallStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Replaces where the quality samples come from. Only takes effect if set before the call
+   * starts, otherwise the {@link PeerConnection} is polled.
+   */
+  public void setStatsSource(@Nonnull final StatsSource source) {
+    this.statsSource = source;
+  }
+
+  /**
+   * Gets the {@link CallTimeline} of the setup of this call.
+   */
+  @Nonnull
+  public CallTimeline getTimeline() {
+    return timeline;
+  }
+
+  /**
+   * Gets how long the media was interrupted the last time the connection was lost and then
+   * recovered, e.g. during a network handover.
+   * @return Duration in milliseconds, or {@code -1} if never interrupted.
+   */
+  public long getLastInterruption() {
+    return lastInterruption;
+  }
+
+  /**
+   * Gets why the call failed.
+   * @return {@code null} if the call is not {@link State#ENDED} or ended normally.
+   */
+  @Nullable
+  public Throwable getError() {
+    return error;
+  }
+}
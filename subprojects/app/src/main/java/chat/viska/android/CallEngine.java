@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import chat.viska.xmpp.Jid;
+import chat.viska.xmpp.Session;
+import chat.viska.xmpp.plugins.metrics.Histogram;
+import chat.viska.xmpp.plugins.webrtc.WebRtcPlugin;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.SessionDescription;
+
+/**
+ * Owns all {@link Call}s of an {@link XmppService}. {@link PeerConnection}s are built
+ * and torn down on a dedicated thread so that neither the main thread nor the WebRTC signaling
+ * thread is blocked. Fields of the spare {@link PeerConnection} are only accessed on that thread.
+ */
+public class CallEngine {
+
+  private static final String LOG_TAG = "CallEngine";
+  private static final String PREFERENCES_NAME = "call-setup";
+
+  /**
+   * Default interval in milliseconds between 2 quality samples of a {@link Call}.
+   */
+  public static final long DEFAULT_STATS_INTERVAL = 1000;
+
+  /**
+   * Time in milliseconds a {@link PeerConnection} created by {@link #prewarm()} is kept before
+   * being disposed, so that an unused ICE candidate pool does not drain the battery.
+   */
+  public static final long SPARE_LIFETIME = 60000;
+
+  private final Application application;
+  private final SharedPreferences preferences;
+  private final Map<CallTimeline.Event, Histogram> setupLatencies = new EnumMap<>(
+      CallTimeline.Event.class
+  );
+  private final Map<String, Call> calls = new ConcurrentHashMap<>();
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      it -> new Thread(it, "CallEngine")
+  );
+  private final Scheduler scheduler = Schedulers.from(executor);
+  private volatile long statsInterval = DEFAULT_STATS_INTERVAL;
+  private PeerConnection spare;
+  private PeerConnectionRelay spareRelay;
+  private PeerConnectionProfile spareProfile;
+  private Disposable spareExpiry;
+
+  public CallEngine(@Nonnull final Application application) {
+    this.application = application;
+    this.preferences = application.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    for (CallTimeline.Event it : CallTimeline.Event.values()) {
+      final Histogram histogram = new Histogram();
+      restore(histogram, preferences.getString(it.name(), ""));
+      setupLatencies.put(it, histogram);
+    }
+  }
+
+  /**
+   * Restores a {@link Histogram} saved by {@link #save(Histogram)}.
+   */
+  private static void restore(@Nonnull final Histogram histogram, @Nonnull final String saved) {
+    final String[] fields = saved.split(",");
+    if (fields.length < 2) {
+      return;
+    }
+    try {
+      final long[] buckets = new long[fields.length - 1];
+      for (int it = 0; it < buckets.length; ++it) {
+        buckets[it] = Long.parseLong(fields[it + 1]);
+      }
+      histogram.restore(buckets, Long.parseLong(fields[0]));
+    } catch (NumberFormatException ex) {
+      Log.w(LOG_TAG, "Discarding corrupted call setup statistics.", ex);
+    }
+  }
+
+  /**
+   * Saves a {@link Histogram} as its sum followed by its buckets, all separated by commas.
+   */
+  @Nonnull
+  private static String save(@Nonnull final Histogram histogram) {
+    final StringBuilder result = new StringBuilder().append(histogram.getSum());
+    for (long it : histogram.getBuckets()) {
+      result.append(',').append(it);
+    }
+    return result.toString();
+  }
+
+  void execute(@Nonnull final Runnable task) {
+    if (!executor.isShutdown()) {
+      executor.execute(task);
+    }
+  }
+
+  @Nonnull
+  Scheduler getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Removes an ended {@link Call} and adds its {@link CallTimeline} to the setup latencies.
+   */
+  void remove(@Nonnull final Call call) {
+    calls.remove(call.getId(), call);
+    Log.i(LOG_TAG, "Setup of call " + call.getId() + ": " + call.getTimeline());
+    Log.i(LOG_TAG, "Quality of call " + call.getId() + ": " + call.getStats());
+    final SharedPreferences.Editor editor = preferences.edit();
+    for (CallTimeline.Event it : CallTimeline.Event.values()) {
+      final long time = call.getTimeline().get(it);
+      if (time >= 0) {
+        final Histogram histogram = setupLatencies.get(it);
+        histogram.record(time);
+        editor.putString(it.name(), save(histogram));
+      }
+    }
+    editor.apply();
+  }
+
+  /**
+   * Creates a {@link PeerConnection} of a {@link PeerConnectionProfile}. Must run on the engine
+   * thread.
+   */
+  @Nonnull
+  private PeerConnection createPeerConnection(@Nonnull final PeerConnectionFactory factory,
+                                              @Nonnull final List<PeerConnection.IceServer> servers,
+                                              @Nonnull final PeerConnectionProfile profile,
+                                              @Nonnull final PeerConnectionRelay relay) {
+    return factory.createPeerConnection(
+        profile.createConfiguration(servers),
+        Call.CONSTRAINTS,
+        relay
+    );
+  }
+
+  /**
+   * Disposes the spare {@link PeerConnection} if any. Must run on the engine thread.
+   */
+  private void disposeSpare() {
+    if (spareExpiry != null) {
+      spareExpiry.dispose();
+      spareExpiry = null;
+    }
+    if (spare != null) {
+      spare.dispose();
+      spare = null;
+    }
+    spareRelay = null;
+    spareProfile = null;
+  }
+
+  /**
+   * Creates a spare {@link PeerConnection} in the background so that the next {@link Call}
+   * started within {@link #SPARE_LIFETIME} skips its creation and finds its ICE candidate pool
+   * already gathered. Call this as soon as a call becomes likely, e.g. when the user interface
+   * for placing calls shows up.
+   */
+  public void prewarm() {
+    application.getWebRtcFactory().zipWith(
+        application.getBuiltInIceServers(),
+        (factory, servers) -> (Runnable) () -> {
+          final PeerConnectionProfile profile = PeerConnectionProfile.select(application);
+          if (spare != null && spareProfile == profile) {
+            spareExpiry.dispose();
+          } else {
+            disposeSpare();
+            spareRelay = new PeerConnectionRelay();
+            spare = createPeerConnection(factory, servers, profile, spareRelay);
+            spareProfile = profile;
+            Log.d(LOG_TAG, "Prewarmed a PeerConnection with profile " + profile);
+          }
+          spareExpiry = scheduler.scheduleDirect(
+              this::disposeSpare,
+              SPARE_LIFETIME,
+              TimeUnit.MILLISECONDS
+          );
+        }
+    ).observeOn(scheduler).subscribe(
+        Runnable::run,
+        ex -> Log.w(LOG_TAG, "Failed to prewarm a PeerConnection.", ex)
+    );
+  }
+
+  /**
+   * Starts a {@link Call} on the engine thread once the warm-up of {@link Application} is done.
+   * Takes over the spare {@link PeerConnection} if it still matches the current network.
+   */
+  private void start(@Nonnull final Call call, @Nullable final SessionDescription offer) {
+    application.getWebRtcFactory().zipWith(
+        application.getBuiltInIceServers(),
+        (factory, servers) -> (Runnable) () -> {
+          final PeerConnectionProfile profile = PeerConnectionProfile.select(application);
+          final AudioPolicy audioPolicy = AudioPolicy.select(application);
+          Log.d(
+              LOG_TAG,
+              "Call " + call.getId() + " uses profile " + profile + " and " + audioPolicy
+          );
+          call.getTimeline().record(CallTimeline.Event.FACTORY_READY);
+          final PeerConnection peerConnection;
+          final PeerConnectionRelay relay;
+          if (spare != null && spareProfile == profile) {
+            Log.d(LOG_TAG, "Call " + call.getId() + " takes over the prewarmed PeerConnection");
+            peerConnection = spare;
+            relay = spareRelay;
+            spare = null;
+            disposeSpare();
+          } else {
+            disposeSpare();
+            relay = new PeerConnectionRelay();
+            peerConnection = createPeerConnection(factory, servers, profile, relay);
+          }
+          call.start(factory, peerConnection, relay, audioPolicy, offer);
+        }
+    ).observeOn(scheduler).subscribe(Runnable::run, call::end);
+  }
+
+  /**
+   * Starts calling a remote user.
+   */
+  @Nonnull
+  public Call startOutboundCall(@Nonnull final Session session, @Nonnull final Jid remoteJid) {
+    final Call call = new Call(this, session, UUID.randomUUID().toString(), remoteJid, true);
+    calls.put(call.getId(), call);
+    start(call, null);
+    return call;
+  }
+
+  /**
+   * Starts building the {@link org.webrtc.PeerConnection} of an inbound call as soon as the offer
+   * arrives, so that it is ready by the time the user interface shows up.
+   */
+  @Nonnull
+  public Call prepareInboundCall(@Nonnull final Session session,
+                                 @Nonnull final WebRtcPlugin.SdpReceivedEvent offer) {
+    final Call call = new Call(this, session, offer.getId(), offer.getRemoteJid(), false);
+    call.getTimeline().record(CallTimeline.Event.SDP_RECEIVED);
+    final Call existing = calls.put(call.getId(), call);
+    if (existing != null) {
+      existing.end(null);
+    }
+    start(call, offer.getSdp());
+    return call;
+  }
+
+  /**
+   * Restarts ICE of all ongoing {@link Call}s so that they move to the new network instead of
+   * being dropped.
+   * @param reconnecting Whether the XMPP connections are being killed, in which case the new
+   *        offers are sent only after they are established again.
+   */
+  public void onNetworkChanged(final boolean reconnecting) {
+    for (Call it : calls.values()) {
+      it.restartIce(reconnecting);
+    }
+  }
+
+  /**
+   * Gets the latency histograms in milliseconds of each {@link CallTimeline.Event} since the
+   * start of a {@link Call}, accumulated across all calls ever made on this device.
+   */
+  @Nonnull
+  public Map<CallTimeline.Event, Histogram> getSetupLatencies() {
+    return Collections.unmodifiableMap(setupLatencies);
+  }
+
+  /**
+   * Gets the interval in milliseconds between 2 quality samples of a {@link Call}.
+   */
+  public long getStatsInterval() {
+    return statsInterval;
+  }
+
+  /**
+   * Sets the interval in milliseconds between 2 quality samples of a {@link Call}. Takes effect
+   * the next time a {@link Call} starts streaming.
+   * @throws IllegalArgumentException If {@code interval} is not positive.
+   */
+  public void setStatsInterval(final long interval) {
+    if (interval < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.statsInterval = interval;
+  }
+
+  @Nullable
+  public Call getCall(@Nonnull final String id) {
+    return calls.get(id);
+  }
+
+  @Nonnull
+  public Collection<Call> getCalls() {
+    return Collections.unmodifiableCollection(new ArrayList<>(calls.values()));
+  }
+
+  /**
+   * Hangs all calls and stops the engine.
+   */
+  public void dispose() {
+    for (Call it : getCalls()) {
+      it.hang();
+    }
+    execute(this::disposeSpare);
+    executor.shutdown();
+  }
+}
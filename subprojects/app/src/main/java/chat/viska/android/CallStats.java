@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import java.util.Locale;
+import javax.annotation.Nonnull;
+
+/**
+ * Quality samples of a {@link Call} in a fixed-size ring of primitive arrays, so that sampling
+ * allocates nothing. The oldest samples are overwritten when full, while the summary covers all
+ * samples ever added.
+ */
+public class CallStats {
+
+  /**
+   * Default number of samples kept.
+   */
+  public static final int DEFAULT_CAPACITY = 256;
+
+  private final long[] times;
+  private final int[] roundTripTimes;
+  private final int[] jitters;
+  private final float[] packetLosses;
+  private final float[] remotePacketLosses;
+  private final int[] sendBitrates;
+  private final int[] receiveBitrates;
+  private final int[] inputLevels;
+  private final int[] outputLevels;
+  private int next = 0;
+  private int size = 0;
+  private long total = 0;
+  private long roundTripTimeSum = 0;
+  private int maxRoundTripTime = 0;
+  private long jitterSum = 0;
+  private double packetLossSum = 0;
+  private float maxPacketLoss = 0;
+  private double remotePacketLossSum = 0;
+  private long sendBitrateSum = 0;
+  private long receiveBitrateSum = 0;
+
+  public CallStats() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public CallStats(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException();
+    }
+    times = new long[capacity];
+    roundTripTimes = new int[capacity];
+    jitters = new int[capacity];
+    packetLosses = new float[capacity];
+    remotePacketLosses = new float[capacity];
+    sendBitrates = new int[capacity];
+    receiveBitrates = new int[capacity];
+    inputLevels = new int[capacity];
+    outputLevels = new int[capacity];
+  }
+
+  /**
+   * Adds a sample.
+   * @param time Time of the sample in {@link android.os.SystemClock#elapsedRealtime()}.
+   * @param roundTripTime Round-trip time in milliseconds.
+   * @param jitter Jitter of the received audio in milliseconds.
+   * @param packetLoss Fraction of received packets lost since the previous sample.
+   * @param remotePacketLoss Fraction of sent packets lost since the previous sample, as reported
+   *        by the remote end.
+   * @param sendBitrate Bitrate sent in bits per second.
+   * @param receiveBitrate Bitrate received in bits per second.
+   * @param inputLevel Level of the local audio as reported by WebRTC.
+   * @param outputLevel Level of the remote audio as reported by WebRTC.
+   */
+  public synchronized void add(final long time,
+                               final int roundTripTime,
+                               final int jitter,
+                               final float packetLoss,
+                               final float remotePacketLoss,
+                               final int sendBitrate,
+                               final int receiveBitrate,
+                               final int inputLevel,
+                               final int outputLevel) {
+    times[next] = time;
+    roundTripTimes[next] = roundTripTime;
+    jitters[next] = jitter;
+    packetLosses[next] = packetLoss;
+    remotePacketLosses[next] = remotePacketLoss;
+    sendBitrates[next] = sendBitrate;
+    receiveBitrates[next] = receiveBitrate;
+    inputLevels[next] = inputLevel;
+    outputLevels[next] = outputLevel;
+    next = (next + 1) % times.length;
+    size = Math.min(size + 1, times.length);
+
+    ++total;
+    roundTripTimeSum += roundTripTime;
+    maxRoundTripTime = Math.max(maxRoundTripTime, roundTripTime);
+    jitterSum += jitter;
+    packetLossSum += packetLoss;
+    maxPacketLoss = Math.max(maxPacketLoss, packetLoss);
+    remotePacketLossSum += remotePacketLoss;
+    sendBitrateSum += sendBitrate;
+    receiveBitrateSum += receiveBitrate;
+  }
+
+  /**
+   * Converts an index counted from the oldest sample kept into an index of the arrays.
+   */
+  private int locate(final int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException();
+    }
+    return (next - size + index + times.length) % times.length;
+  }
+
+  /**
+   * Gets the number of samples kept.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized long getTime(final int index) {
+    return times[locate(index)];
+  }
+
+  public synchronized int getRoundTripTime(final int index) {
+    return roundTripTimes[locate(index)];
+  }
+
+  public synchronized int getJitter(final int index) {
+    return jitters[locate(index)];
+  }
+
+  public synchronized float getPacketLoss(final int index) {
+    return packetLosses[locate(index)];
+  }
+
+  public synchronized float getRemotePacketLoss(final int index) {
+    return remotePacketLosses[locate(index)];
+  }
+
+  public synchronized int getSendBitrate(final int index) {
+    return sendBitrates[locate(index)];
+  }
+
+  public synchronized int getReceiveBitrate(final int index) {
+    return receiveBitrates[locate(index)];
+  }
+
+  public synchronized int getInputLevel(final int index) {
+    return inputLevels[locate(index)];
+  }
+
+  public synchronized int getOutputLevel(final int index) {
+    return outputLevels[locate(index)];
+  }
+
+  /**
+   * Gets the number of samples ever added.
+   */
+  public synchronized long getTotal() {
+    return total;
+  }
+
+  public synchronized double getMeanRoundTripTime() {
+    return total == 0 ? 0 : (double) roundTripTimeSum / total;
+  }
+
+  public synchronized int getMaxRoundTripTime() {
+    return maxRoundTripTime;
+  }
+
+  public synchronized double getMeanJitter() {
+    return total == 0 ? 0 : (double) jitterSum / total;
+  }
+
+  public synchronized double getMeanPacketLoss() {
+    return total == 0 ? 0 : packetLossSum / total;
+  }
+
+  public synchronized float getMaxPacketLoss() {
+    return maxPacketLoss;
+  }
+
+  public synchronized double getMeanRemotePacketLoss() {
+    return total == 0 ? 0 : remotePacketLossSum / total;
+  }
+
+  public synchronized double getMeanSendBitrate() {
+    return total == 0 ? 0 : (double) sendBitrateSum / total;
+  }
+
+  public synchronized double getMeanReceiveBitrate() {
+    return total == 0 ? 0 : (double) receiveBitrateSum / total;
+  }
+
+  @Nonnull
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        Locale.ROOT,
+        "samples=%d rtt=%.0f/%d ms jitter=%.0f ms loss=%.3f/%.3f remote-loss=%.3f"
+            + " bitrate=%.0f/%.0f bps",
+        total,
+        getMeanRoundTripTime(),
+        maxRoundTripTime,
+        getMeanJitter(),
+        getMeanPacketLoss(),
+        maxPacketLoss,
+        getMeanRemotePacketLoss(),
+        getMeanSendBitrate(),
+        getMeanReceiveBitrate()
+    );
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.os.SystemClock;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnull;
+
+/**
+ * Milestones of the setup of a {@link Call}, each recorded in milliseconds since the
+ * {@link Call} was created. Only the first occurrence of each {@link Event} is kept, so that
+ * renegotiations do not blur the setup.
+ */
+public class CallTimeline {
+
+  public enum Event {
+
+    /**
+     * The offer creating an inbound call is received.
+     */
+    SDP_RECEIVED,
+
+    /**
+     * The user interface attached to the call.
+     */
+    ACTIVITY_LAUNCHED,
+
+    /**
+     * The {@link org.webrtc.PeerConnectionFactory} and ICE servers are ready.
+     */
+    FACTORY_READY,
+
+    /**
+     * The local offer or answer is created.
+     */
+    SDP_CREATED,
+
+    /**
+     * ICE gathering completed.
+     */
+    GATHERING_COMPLETE,
+
+    /**
+     * The local offer or answer is sent.
+     */
+    SDP_SENT,
+
+    /**
+     * The remote end acknowledged the local offer or answer.
+     */
+    SDP_ACKED,
+
+    /**
+     * ICE connected for the first time.
+     */
+    ICE_CONNECTED
+  }
+
+  private final long origin = SystemClock.elapsedRealtime();
+  private final AtomicLongArray times = new AtomicLongArray(Event.values().length);
+
+  public CallTimeline() {
+    for (int it = 0; it < times.length(); ++it) {
+      times.set(it, -1);
+    }
+  }
+
+  /**
+   * Records an {@link Event} unless it is already recorded.
+   * @return {@code true} if recorded.
+   */
+  public boolean record(@Nonnull final Event event) {
+    return times.compareAndSet(event.ordinal(), -1, SystemClock.elapsedRealtime() - origin);
+  }
+
+  /**
+   * Gets when an {@link Event} happened.
+   * @return Milliseconds since the {@link Call} was created, or {@code -1} if it has not
+   *         happened.
+   */
+  public long get(@Nonnull final Event event) {
+    return times.get(event.ordinal());
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder result = new StringBuilder();
+    for (Event it : Event.values()) {
+      final long time = get(it);
+      if (time >= 0) {
+        if (result.length() > 0) {
+          result.append(' ');
+        }
+        result.append(it.name().toLowerCase(Locale.ROOT)).append('=').append(time);
+      }
+    }
+    return result.toString();
+  }
+}
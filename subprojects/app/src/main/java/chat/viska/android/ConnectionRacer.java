@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import chat.viska.xmpp.Connection;
+import io.reactivex.Maybe;
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+/**
+ * Picks the fastest reachable {@link Connection} of a domain, similar to
+ * <a href="https://tools.ietf.org/html/rfc8305">Happy Eyeballs</a>. The winner of each domain is
+ * remembered and used right away next time without any probe, until {@link #forget(String)} is
+ * called after a login to it fails. Otherwise the candidates are probed in rounds of
+ * {@link #MAX_CONTENDERS} with staggered starts, the first one to finish a TCP connection wins and
+ * the others are cancelled. The next round only starts if all probes of a round fail.
+ *
+ * <p>A probe only connects TCP and never handshakes TLS, because the session opens its own
+ * connection to the winner and a handshake would be paid twice.</p>
+ */
+public class ConnectionRacer {
+
+  /**
+   * Maximum number of {@link Connection}s probed in one round.
+   */
+  public static final int MAX_CONTENDERS = 3;
+
+  /**
+   * Delay in milliseconds between the starts of 2 probes.
+   */
+  public static final long STAGGER = 250;
+
+  /**
+   * Timeout in milliseconds of a TCP connection of a probe.
+   */
+  public static final int TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+
+  private static final String LOG_TAG = "ConnectionRacer";
+  private static final String PREFERENCES_NAME = "connection-racer";
+
+  private final SharedPreferences preferences;
+  private final int timeout;
+
+  @Nonnull
+  private static String getKey(@Nonnull final Connection connection) {
+    return connection.getDomain() + ':' + connection.getPort();
+  }
+
+  public ConnectionRacer(@Nonnull final Context context) {
+    this(
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE),
+        TIMEOUT
+    );
+  }
+
+  /**
+   * Constructs a {@link ConnectionRacer} with its storage and probe timeout injected, e.g. for
+   * testing.
+   */
+  ConnectionRacer(@Nonnull final SharedPreferences preferences, final int timeout) {
+    this.preferences = preferences;
+    this.timeout = timeout;
+  }
+
+  @Nonnull
+  private Single<Connection> probe(@Nonnull final Connection connection) {
+    return Single.<Connection>create(emitter -> {
+      final Socket socket = new Socket();
+      emitter.setCancellable(socket::close);
+      try {
+        socket.connect(
+            new InetSocketAddress(connection.getDomain(), connection.getPort()),
+            timeout
+        );
+        socket.close();
+        emitter.onSuccess(connection);
+      } catch (Exception ex) {
+        if (!emitter.isDisposed()) {
+          emitter.onError(ex);
+        }
+      }
+    }).subscribeOn(Schedulers.io());
+  }
+
+  /**
+   * Races the candidates starting from {@code start}, one round after another.
+   */
+  @Nonnull
+  private Maybe<Connection> race(@Nonnull final String domain,
+                                 @Nonnull final List<Connection> connections,
+                                 final int start) {
+    if (start >= connections.size()) {
+      return Maybe.error(new ConnectException("No server of " + domain + " is reachable."));
+    }
+    final List<Observable<Connection>> probes = new ArrayList<>();
+    final int end = Math.min(start + MAX_CONTENDERS, connections.size());
+    for (int it = start; it < end; ++it) {
+      final Connection connection = connections.get(it);
+      probes.add(probe(connection).delaySubscription(
+          (it - start) * STAGGER,
+          TimeUnit.MILLISECONDS
+      ).toObservable().onErrorResumeNext(ex -> {
+        Log.d(LOG_TAG, getKey(connection) + " lost the race.", ex);
+        return Observable.empty();
+      }));
+    }
+    return Observable.merge(probes).firstElement().switchIfEmpty(
+        Maybe.defer(() -> race(domain, connections, end))
+    );
+  }
+
+  /**
+   * Picks a {@link Connection} of a domain. The remembered winner is signaled right away if it
+   * is still a candidate, otherwise the candidates are raced.
+   * @return Empty if {@code connections} is empty. Signals a {@link ConnectException} if no
+   *         candidate is reachable.
+   */
+  @Nonnull
+  public Maybe<Connection> race(@Nonnull final String domain,
+                                @Nonnull final List<Connection> connections) {
+    if (connections.isEmpty()) {
+      return Maybe.empty();
+    }
+    if (connections.size() == 1) {
+      return Maybe.just(connections.get(0));
+    }
+    final String winner = preferences.getString(domain, null);
+    for (Connection it : connections) {
+      if (getKey(it).equals(winner)) {
+        return Maybe.just(it);
+      }
+    }
+    return race(domain, connections, 0).doOnSuccess(it -> {
+      Log.i(LOG_TAG, getKey(it) + " won the race of " + domain);
+      preferences.edit().putString(domain, getKey(it)).apply();
+    });
+  }
+
+  /**
+   * Forgets the winner of a domain so that the next {@link #race(String, List)} probes all
+   * candidates again. Call this when a login fails to connect to the winner.
+   */
+  public void forget(@Nonnull final String domain) {
+    preferences.edit().remove(domain).apply();
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import chat.viska.xmpp.Connection;
+import io.reactivex.Single;
+import io.reactivex.functions.BiFunction;
+import io.reactivex.schedulers.Schedulers;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Cache of {@link Connection#queryDns(String, List)} keyed by the domain and the DNS servers of
+ * the network. Entries are persisted so that they survive process restarts. An expired entry is
+ * still served for {@link #STALE_TTL} while it is being refreshed in the background on
+ * {@link Schedulers#io()}.
+ */
+public class DnsCache {
+
+  private static class Entry {
+
+    private final List<Connection> connections;
+    private final long expiry;
+
+    private Entry(@Nonnull final List<Connection> connections, final long expiry) {
+      this.connections = connections;
+      this.expiry = expiry;
+    }
+  }
+
+  /**
+   * How long in milliseconds an entry is fresh. {@link Connection#queryDns(String, List)} only
+   * returns the {@link Connection}s and drops the TTLs of the SRV records, so they cannot be
+   * honored. One hour is at the low end of the TTLs XMPP servers commonly publish, so a moved
+   * server is rarely missed for longer than its own TTL, while the stale period keeps logins fast
+   * whenever the entry has just expired.
+   */
+  public static final long TTL = TimeUnit.HOURS.toMillis(1);
+
+  /**
+   * How long in milliseconds an entry is still served after it expired.
+   */
+  public static final long STALE_TTL = TimeUnit.DAYS.toMillis(1);
+
+  private static final String LOG_TAG = "DnsCache";
+  private static final String PREFERENCES_NAME = "dns-cache";
+  private static final String KEY_EXPIRY = "expiry";
+  private static final String KEY_CONNECTIONS = "connections";
+  private static final String KEY_DOMAIN = "domain";
+  private static final String KEY_PORT = "port";
+  private static final String KEY_TLS = "tls";
+
+  private final SharedPreferences preferences;
+  private final BiFunction<String, List<InetAddress>, Single<List<Connection>>> resolver;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Map<String, Single<List<Connection>>> queries = new ConcurrentHashMap<>();
+
+  @Nonnull
+  private static String getKey(@Nonnull final String domain,
+                               @Nonnull final List<InetAddress> dns) {
+    final List<String> servers = new ArrayList<>(dns.size());
+    for (InetAddress it : dns) {
+      servers.add(it.getHostAddress());
+    }
+    Collections.sort(servers);
+    return domain + '@' + servers;
+  }
+
+  /**
+   * Only TCP {@link Connection}s are persisted since WebSocket ones are rarely found in SRV
+   * records.
+   */
+  @Nonnull
+  private static String serialize(@Nonnull final Entry entry) throws JSONException {
+    final JSONArray connections = new JSONArray();
+    for (Connection it : entry.connections) {
+      if (it.getProtocol() != Connection.Protocol.TCP) {
+        continue;
+      }
+      final JSONObject connection = new JSONObject();
+      connection.put(KEY_DOMAIN, it.getDomain());
+      connection.put(KEY_PORT, it.getPort());
+      connection.put(KEY_TLS, it.getTlsMethod().name());
+      connections.put(connection);
+    }
+    final JSONObject json = new JSONObject();
+    json.put(KEY_EXPIRY, entry.expiry);
+    json.put(KEY_CONNECTIONS, connections);
+    return json.toString();
+  }
+
+  @Nonnull
+  private static Entry deserialize(@Nonnull final String text) throws JSONException {
+    final JSONObject json = new JSONObject(text);
+    final JSONArray array = json.getJSONArray(KEY_CONNECTIONS);
+    final List<Connection> connections = new ArrayList<>(array.length());
+    for (int it = 0; it < array.length(); ++it) {
+      final JSONObject connection = array.getJSONObject(it);
+      connections.add(new Connection(
+          connection.getString(KEY_DOMAIN),
+          connection.getInt(KEY_PORT),
+          Connection.TlsMethod.valueOf(connection.getString(KEY_TLS))
+      ));
+    }
+    return new Entry(Collections.unmodifiableList(connections), json.getLong(KEY_EXPIRY));
+  }
+
+  public DnsCache(@Nonnull final Context context) {
+    this(
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE),
+        Connection::queryDns
+    );
+  }
+
+  /**
+   * Constructs a {@link DnsCache} with a custom resolver, e.g. for testing.
+   * @param resolver Queries the {@link Connection}s of a domain from some DNS servers.
+   */
+  DnsCache(
+      @Nonnull final SharedPreferences preferences,
+      @Nonnull final BiFunction<String, List<InetAddress>, Single<List<Connection>>> resolver
+  ) {
+    this.preferences = preferences;
+    this.resolver = resolver;
+  }
+
+  @Nullable
+  private Entry load(@Nonnull final String key) {
+    final Entry cached = entries.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    final String text = preferences.getString(key, null);
+    if (text == null) {
+      return null;
+    }
+    try {
+      final Entry entry = deserialize(text);
+      entries.put(key, entry);
+      return entry;
+    } catch (Exception ex) {
+      Log.w(LOG_TAG, "Discarding a corrupted entry of " + key, ex);
+      preferences.edit().remove(key).apply();
+      return null;
+    }
+  }
+
+  private void store(@Nonnull final String key, @Nonnull final List<Connection> connections) {
+    final Entry entry = new Entry(connections, System.currentTimeMillis() + TTL);
+    entries.put(key, entry);
+    try {
+      preferences.edit().putString(key, serialize(entry)).apply();
+    } catch (Exception ex) {
+      Log.w(LOG_TAG, "Failed to persist " + key, ex);
+    }
+  }
+
+  /**
+   * Queries the DNS on {@link Schedulers#io()}, sharing the query with other callers asking for
+   * the same key at the same time.
+   */
+  @Nonnull
+  private Single<List<Connection>> refresh(@Nonnull final String key,
+                                           @Nonnull final String domain,
+                                           @Nonnull final List<InetAddress> dns) {
+    final Single<List<Connection>> ongoing = queries.get(key);
+    if (ongoing != null) {
+      return ongoing;
+    }
+    final Single<List<Connection>> query = Single
+        .defer(() -> resolver.apply(domain, dns))
+        .subscribeOn(Schedulers.io())
+        .doOnSuccess(it -> store(key, it))
+        .doFinally(() -> queries.remove(key))
+        .cache();
+    final Single<List<Connection>> existing = queries.putIfAbsent(key, query);
+    return existing == null ? query : existing;
+  }
+
+  /**
+   * Resolves the {@link Connection}s of a domain. Signals a cached result immediately if one is
+   * fresh, or if one is stale while it is refreshed in the background.
+   */
+  @Nonnull
+  public Single<List<Connection>> query(@Nonnull final String domain,
+                                        @Nonnull final List<InetAddress> dns) {
+    final String key = getKey(domain, dns);
+    final Entry entry = load(key);
+    final long now = System.currentTimeMillis();
+    if (entry != null && !entry.connections.isEmpty()) {
+      if (now < entry.expiry) {
+        return Single.just(entry.connections);
+      } else if (now < entry.expiry + STALE_TTL) {
+        refresh(key, domain, dns).subscribe(
+            it -> {},
+            ex -> Log.w(LOG_TAG, "Failed to refresh " + key, ex)
+        );
+        return Single.just(entry.connections);
+      }
+    }
+    return refresh(key, domain, dns);
+  }
+
+  /**
+   * Removes all entries of a domain, e.g. after failing to connect to any of them. Should not be
+   * called for errors unrelated to the addresses, like a failed authentication.
+   */
+  public void invalidate(@Nonnull final String domain) {
+    final String prefix = domain + '@';
+    final SharedPreferences.Editor editor = preferences.edit();
+    for (String it : preferences.getAll().keySet()) {
+      if (it.startsWith(prefix)) {
+        editor.remove(it);
+      }
+    }
+    editor.apply();
+    for (String it : entries.keySet()) {
+      if (it.startsWith(prefix)) {
+        entries.remove(it);
+      }
+    }
+  }
+}
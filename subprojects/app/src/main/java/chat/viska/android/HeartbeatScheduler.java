@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+import chat.viska.commons.DisposablesBin;
+import chat.viska.xmpp.Jid;
+import chat.viska.xmpp.Session;
+import chat.viska.xmpp.StandardSession;
+import chat.viska.xmpp.plugins.ping.PingPlugin;
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Consumer;
+import io.reactivex.schedulers.Schedulers;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nonnull;
+
+/**
+ * Pings all online {@link StandardSession}s of a {@link SessionRegistry} together, so that the
+ * radio wakes up once per heartbeat instead of once per account. The interval grows by
+ * {@link #STEP} after every heartbeat in which all pings are answered and is halved after a ping
+ * fails, which converges on the NAT timeout of the network. A {@link StandardSession} failing a
+ * ping is considered half-dead.
+ *
+ * <p>Heartbeats are woken up by {@link AlarmManager#setExactAndAllowWhileIdle} so that they also
+ * fire in Doze, where {@link #MAX_INTERVAL} stays within the rate limit of such alarms. A wake lock
+ * is held until all pings of a heartbeat are answered or timed out.</p>
+ */
+public class HeartbeatScheduler {
+
+  /**
+   * Initial interval in milliseconds.
+   */
+  public static final long INITIAL_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * Lower bound of the interval in milliseconds.
+   */
+  public static final long MIN_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+  /**
+   * Upper bound of the interval in milliseconds.
+   */
+  public static final long MAX_INTERVAL = TimeUnit.MINUTES.toMillis(9);
+
+  /**
+   * How much the interval grows in milliseconds after a successful heartbeat.
+   */
+  public static final long STEP = TimeUnit.SECONDS.toMillis(30);
+
+  /**
+   * How long in milliseconds to wait for a pong.
+   */
+  public static final long TIMEOUT = TimeUnit.SECONDS.toMillis(15);
+
+  private static final String LOG_TAG = "HeartbeatScheduler";
+  private static final String ACTION_HEARTBEAT = "chat.viska.android.action.HEARTBEAT";
+
+  private final Context context;
+  private final SessionRegistry sessions;
+  private final Consumer<Jid> onDead;
+  private final Scheduler scheduler;
+  private final AlarmManager alarmManager;
+  private final PendingIntent alarm;
+  private final PowerManager.WakeLock wakeLock;
+  private final Map<Jid, Long> roundTripTimes = new ConcurrentHashMap<>();
+  private final DisposablesBin bin = new DisposablesBin();
+  private final BroadcastReceiver alarmReceiver = new BroadcastReceiver() {
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+      onAlarm();
+    }
+  };
+  private volatile long interval = INITIAL_INTERVAL;
+  private boolean isStarted = false;
+  private Disposable heartbeat;
+
+  /**
+   * Constructs a {@link HeartbeatScheduler} using {@link Schedulers#computation()}.
+   */
+  public HeartbeatScheduler(@Nonnull final Context context,
+                            @Nonnull final SessionRegistry sessions,
+                            @Nonnull final Consumer<Jid> onDead) {
+    this(context, sessions, onDead, Schedulers.computation());
+  }
+
+  /**
+   * Default constructor.
+   * @param onDead Invoked with the {@link Jid} of a {@link StandardSession} failing a ping.
+   * @param scheduler Runs the ping timeouts.
+   */
+  public HeartbeatScheduler(@Nonnull final Context context,
+                            @Nonnull final SessionRegistry sessions,
+                            @Nonnull final Consumer<Jid> onDead,
+                            @Nonnull final Scheduler scheduler) {
+    this.context = context;
+    this.sessions = sessions;
+    this.onDead = onDead;
+    this.scheduler = scheduler;
+    this.alarmManager = context.getSystemService(AlarmManager.class);
+    this.alarm = PendingIntent.getBroadcast(
+        context,
+        0,
+        new Intent(ACTION_HEARTBEAT).setPackage(context.getPackageName()),
+        PendingIntent.FLAG_UPDATE_CURRENT
+    );
+    this.wakeLock = context.getSystemService(PowerManager.class).newWakeLock(
+        PowerManager.PARTIAL_WAKE_LOCK,
+        LOG_TAG
+    );
+    this.wakeLock.setReferenceCounted(false);
+    bin.add(sessions.getChanges().filter(
+        it -> it.getType() == SessionRegistry.ChangeEvent.Type.REMOVED
+    ).subscribe(it -> roundTripTimes.remove(it.getJid())));
+  }
+
+  @Nonnull
+  private Completable ping(@Nonnull final Jid jid,
+                           @Nonnull final StandardSession session,
+                           @Nonnull final AtomicBoolean failed) {
+    final PingPlugin plugin = session.getPluginManager().getPlugin(PingPlugin.class);
+    if (plugin == null) {
+      return Completable.complete();
+    }
+    return plugin.ping().timeout(TIMEOUT, TimeUnit.MILLISECONDS, scheduler).doOnSuccess(
+        it -> roundTripTimes.put(jid, it)
+    ).toCompletable().doOnError(ex -> {
+      failed.set(true);
+      if (session.getState().getValue() == Session.State.ONLINE) {
+        Log.w(LOG_TAG, jid + " did not answer the ping, treating it as dead.", ex);
+        onDead.accept(jid);
+      }
+    }).onErrorComplete();
+  }
+
+  /**
+   * Pings all online {@link StandardSession}s and adapts the interval.
+   */
+  @Nonnull
+  private Completable beat() {
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    return Observable.fromIterable(sessions.getSessions().entrySet()).filter(
+        it -> it.getValue().getState().getValue() == Session.State.ONLINE
+    ).flatMapCompletable(
+        it -> ping(it.getKey(), it.getValue(), failed)
+    ).doOnComplete(() -> {
+      if (failed.get()) {
+        interval = Math.max(MIN_INTERVAL, interval / 2);
+      } else {
+        interval = Math.min(MAX_INTERVAL, interval + STEP);
+      }
+      Log.d(LOG_TAG, "Next heartbeat in " + interval + " ms.");
+    });
+  }
+
+  /**
+   * Sets the alarm of the next heartbeat {@link #interval} from now.
+   */
+  private void scheduleAlarm() {
+    alarmManager.setExactAndAllowWhileIdle(
+        AlarmManager.ELAPSED_REALTIME_WAKEUP,
+        SystemClock.elapsedRealtime() + interval,
+        alarm
+    );
+  }
+
+  /**
+   * Runs a heartbeat while holding {@link #wakeLock} and sets the next alarm afterwards.
+   */
+  private synchronized void onAlarm() {
+    if (!isStarted || (heartbeat != null && !heartbeat.isDisposed())) {
+      return;
+    }
+    wakeLock.acquire(TIMEOUT * 2);
+    heartbeat = beat().doFinally(() -> {
+      synchronized (this) {
+        if (isStarted) {
+          scheduleAlarm();
+        }
+      }
+      wakeLock.release();
+    }).subscribe();
+  }
+
+  /**
+   * Starts the heartbeats. Does nothing if already started.
+   */
+  public synchronized void start() {
+    if (isStarted) {
+      return;
+    }
+    isStarted = true;
+    context.registerReceiver(alarmReceiver, new IntentFilter(ACTION_HEARTBEAT));
+    scheduleAlarm();
+  }
+
+  /**
+   * Stops the heartbeats and the tracking of {@link StandardSession}s.
+   */
+  public synchronized void dispose() {
+    bin.clear();
+    if (!isStarted) {
+      return;
+    }
+    isStarted = false;
+    alarmManager.cancel(alarm);
+    context.unregisterReceiver(alarmReceiver);
+    if (heartbeat != null) {
+      heartbeat.dispose();
+    }
+    wakeLock.release();
+  }
+
+  /**
+   * Gets the current interval in milliseconds.
+   */
+  public long getInterval() {
+    return interval;
+  }
+
+  /**
+   * Gets the round-trip time in milliseconds of the last pong of each {@link StandardSession}.
+   */
+  @Nonnull
+  public Map<Jid, Long> getRoundTripTimes() {
+    return Collections.unmodifiableMap(roundTripTimes);
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Bounded lock-free ring buffer for many producers and one consumer. Each slot carries a sequence
+ * number telling whether it is free for the producer of a given position or ready for the
+ * consumer, so neither side ever blocks.
+ */
+final class LogRing<T> {
+
+  private final AtomicReferenceArray<T> items;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private final int mask;
+  private long head = 0;
+
+  /**
+   * Default constructor.
+   * @param capacity Must be a power of 2.
+   */
+  LogRing(final int capacity) {
+    if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException();
+    }
+    this.items = new AtomicReferenceArray<>(capacity);
+    this.sequences = new AtomicLongArray(capacity);
+    this.mask = capacity - 1;
+    for (int it = 0; it < capacity; ++it) {
+      sequences.set(it, it);
+    }
+  }
+
+  /**
+   * Enqueues an item. Safe to call from any thread.
+   * @return {@code false} if the ring is full.
+   */
+  boolean offer(@Nonnull final T item) {
+    long position = tail.get();
+    while (true) {
+      final int index = (int) position & mask;
+      final long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          items.set(index, item);
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Dequeues an item. Must only be called from the consumer thread.
+   * @return {@code null} if the ring is empty.
+   */
+  @Nullable
+  T poll() {
+    final int index = (int) head & mask;
+    if (sequences.get(index) != head + 1) {
+      return null;
+    }
+    final T item = items.get(index);
+    items.set(index, null);
+    sequences.set(index, head + mask + 1);
+    ++head;
+    return item;
+  }
+}
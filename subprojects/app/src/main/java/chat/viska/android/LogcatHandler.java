@@ -16,19 +16,75 @@
 
 package chat.viska.android;
 
+import android.os.SystemClock;
 import android.util.Log;
+import chat.viska.xmpp.Jid;
 import chat.viska.xmpp.Session;
 import chat.viska.xmpp.SessionAware;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import javax.annotation.Nonnull;
 
+/**
+ * {@link Handler} printing to Logcat. {@link #publish(LogRecord)} only enqueues the record into a
+ * {@link LogRing} shared by all instances and never blocks, the records are printed in batches by
+ * a background thread. Records are dropped when the ring is full or when a level exceeds its rate
+ * limit.
+ */
 public class LogcatHandler extends Handler implements SessionAware {
 
+  private static class Entry {
+
+    private final String tag;
+    private final int level;
+    private final LogRecord record;
+
+    private Entry(@Nonnull final String tag, final int level, @Nonnull final LogRecord record) {
+      this.tag = tag;
+      this.level = level;
+      this.record = record;
+    }
+  }
+
+  /**
+   * Capacity of the ring shared by all instances.
+   */
+  public static final int CAPACITY = 1024;
+
+  /**
+   * Maximum number of records printed by the background thread before it checks for new ones.
+   */
+  public static final int BATCH_SIZE = 64;
+
+  /**
+   * Maximum number of records of each Android log level published per second per instance,
+   * indexed by the Android log level.
+   */
+  private static final int[] RATE_LIMITS = { 0, 0, 200, 200, 100, 100, 100, 100 };
+
+  private static final LogRing<Entry> ring = new LogRing<>(CAPACITY);
+  private static final Thread drainer = new Thread(LogcatHandler::drain, "LogcatHandler");
+  private static volatile boolean isDrainerIdle = false;
+
+  static {
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
   private final Session session;
-  private boolean closed = false;
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final AtomicLongArray rateWindows = new AtomicLongArray(RATE_LIMITS.length);
+  private final AtomicIntegerArray rateCounts = new AtomicIntegerArray(RATE_LIMITS.length);
+  private volatile Jid taggedJid;
+  private volatile String tag = "";
+  private volatile boolean closed = false;
 
   public static int toAndroidLevel(@Nonnull final Level level) {
     Objects.requireNonNull(level);
@@ -45,17 +101,72 @@ public class LogcatHandler extends Handler implements SessionAware {
     }
   }
 
+  private static void drain() {
+    while (true) {
+      int count = 0;
+      Entry entry;
+      while (count < BATCH_SIZE && (entry = ring.poll()) != null) {
+        final String message = entry.record.getThrown() == null
+            ? entry.record.getMessage()
+            : entry.record.getMessage() + '\n' + Log.getStackTraceString(entry.record.getThrown());
+        Log.println(entry.level, entry.tag, String.valueOf(message));
+        ++count;
+      }
+      if (count == 0) {
+        isDrainerIdle = true;
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+        isDrainerIdle = false;
+      }
+    }
+  }
+
   public LogcatHandler(@Nonnull final Session session) {
     this.session = session;
   }
 
+  /**
+   * Gets the tag of the {@link Session}, which is only rebuilt when its {@link Jid} changes.
+   */
+  @Nonnull
+  private String getTag() {
+    final Jid jid = session.getNegotiatedJid().isEmpty()
+        ? session.getLoginJid()
+        : session.getNegotiatedJid();
+    if (jid != taggedJid) {
+      tag = jid.toString();
+      taggedJid = jid;
+    }
+    return tag;
+  }
+
+  /**
+   * Checks and counts a record against the rate limit of its level within the current second.
+   */
+  private boolean isWithinRateLimit(final int level) {
+    final long window = SystemClock.elapsedRealtime() / 1000;
+    final long current = rateWindows.get(level);
+    if (current != window && rateWindows.compareAndSet(level, current, window)) {
+      rateCounts.set(level, 0);
+    }
+    return rateCounts.incrementAndGet(level) <= RATE_LIMITS[level];
+  }
+
+  /**
+   * Gets the number of records dropped because the ring was full or a rate limit was exceeded.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
   @Override
   public void close() throws SecurityException {
     closed = true;
   }
 
   @Override
-  public void flush() {}
+  public void flush() {
+    LockSupport.unpark(drainer);
+  }
 
   @Override
   public void publish(@Nonnull final LogRecord record) {
@@ -63,22 +174,12 @@ public class LogcatHandler extends Handler implements SessionAware {
       return;
     }
     final int level = toAndroidLevel(record.getLevel());
-    final String tag = session.getNegotiatedJid().isEmpty()
-        ? session.getLoginJid().toString()
-        : session.getNegotiatedJid().toString();
-    if (level == Log.ERROR) {
-      Log.e(tag, record.getMessage(), record.getThrown());
-      if (record.getThrown() != null) {
-        record.getThrown().printStackTrace();
-      }
-    } else if (level == Log.WARN) {
-      Log.w(tag,record.getMessage(), record.getThrown());
-    } else if (level == Log.INFO) {
-      Log.i(tag,record.getMessage(), record.getThrown());
-    } else if (level == Log.DEBUG) {
-      Log.d(tag,record.getMessage(), record.getThrown());
-    } else if (level == Log.VERBOSE) {
-      Log.v(tag,record.getMessage(), record.getThrown());
+    if (!isWithinRateLimit(level) || !ring.offer(new Entry(getTag(), level, record))) {
+      droppedCount.incrementAndGet();
+      return;
+    }
+    if (isDrainerIdle) {
+      LockSupport.unpark(drainer);
     }
   }
 
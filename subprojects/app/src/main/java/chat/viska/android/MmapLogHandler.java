@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import chat.viska.xmpp.Jid;
+import chat.viska.xmpp.Session;
+import chat.viska.xmpp.SessionAware;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * {@link Handler} writing compact binary records into a fixed-size memory-mapped file, which
+ * wraps around when full and survives crashes for post-mortem diagnostics. Writing a record
+ * allocates nothing as long as the parameters of the {@link LogRecord} are {@link String}s, and
+ * concurrent writers only contend on one {@link AtomicLong}. Use {@link #decode(File, Appendable)}
+ * to turn a file back into text.
+ *
+ * <p>Layout of the file:</p>
+ *
+ * <pre>{@code
+ * Header, HEADER_SIZE bytes:
+ *   int magic, int version, int slot size, int slot count, long next sequence,
+ *   short JID length, JID in UTF-8
+ * Slot, SLOT_SIZE bytes each:
+ *   long sequence + 1 (0 if empty), long time in milliseconds, int level,
+ *   short payload length, payload in UTF-8
+ * }</pre>
+ *
+ * <p>The payload is the message template of the {@link LogRecord} followed by each parameter,
+ * all separated by {@link #SEPARATOR}. The message is truncated if it does not fit in a slot.</p>
+ */
+public class MmapLogHandler extends Handler implements SessionAware {
+
+  public static final int MAGIC = 0x56534c47;
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 128;
+  public static final int SLOT_SIZE = 256;
+  public static final int DEFAULT_SLOT_COUNT = 4096;
+  public static final char SEPARATOR = '\u001F';
+
+  private static final int OFFSET_NEXT_SEQUENCE = 16;
+  private static final int OFFSET_JID = 24;
+  private static final int OFFSET_TIME = 8;
+  private static final int OFFSET_LEVEL = 16;
+  private static final int OFFSET_PAYLOAD = 20;
+  private static final int PAYLOAD_CAPACITY = SLOT_SIZE - OFFSET_PAYLOAD - 2;
+
+  private final Session session;
+  private final RandomAccessFile file;
+  private final MappedByteBuffer buffer;
+  private final int slotCount;
+  private final AtomicLong nextSequence;
+  private volatile Jid writtenJid;
+  private volatile boolean closed = false;
+
+  /**
+   * Encodes a {@link CharSequence} in UTF-8 into {@code buffer} at an absolute index without
+   * allocating anything. Stops before a character that does not fit.
+   * @return Number of bytes written.
+   */
+  private static int encode(@Nonnull final ByteBuffer buffer,
+                            final int index,
+                            final int limit,
+                            @Nonnull final CharSequence text) {
+    int cursor = index;
+    for (int it = 0; it < text.length(); ++it) {
+      final char character = text.charAt(it);
+      if (character < 0x80) {
+        if (cursor + 1 > limit) {
+          break;
+        }
+        buffer.put(cursor++, (byte) character);
+      } else if (character < 0x800) {
+        if (cursor + 2 > limit) {
+          break;
+        }
+        buffer.put(cursor++, (byte) (0xC0 | (character >> 6)));
+        buffer.put(cursor++, (byte) (0x80 | (character & 0x3F)));
+      } else if (Character.isHighSurrogate(character)
+          && it + 1 < text.length()
+          && Character.isLowSurrogate(text.charAt(it + 1))) {
+        if (cursor + 4 > limit) {
+          break;
+        }
+        final int codePoint = Character.toCodePoint(character, text.charAt(++it));
+        buffer.put(cursor++, (byte) (0xF0 | (codePoint >> 18)));
+        buffer.put(cursor++, (byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        buffer.put(cursor++, (byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        buffer.put(cursor++, (byte) (0x80 | (codePoint & 0x3F)));
+      } else {
+        if (cursor + 3 > limit) {
+          break;
+        }
+        buffer.put(cursor++, (byte) (0xE0 | (character >> 12)));
+        buffer.put(cursor++, (byte) (0x80 | ((character >> 6) & 0x3F)));
+        buffer.put(cursor++, (byte) (0x80 | (character & 0x3F)));
+      }
+    }
+    return cursor - index;
+  }
+
+  @Nonnull
+  private static String readString(@Nonnull final ByteBuffer buffer,
+                                   final int index,
+                                   final int length) {
+    final byte[] bytes = new byte[length];
+    for (int it = 0; it < length; ++it) {
+      bytes[it] = buffer.get(index + it);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Decodes a file written by a {@link MmapLogHandler} into one line per record, from the oldest
+   * to the newest.
+   * @throws IOException If the file is not written by a {@link MmapLogHandler}.
+   */
+  public static void decode(@Nonnull final File source, @Nonnull final Appendable output)
+      throws IOException {
+    final ByteBuffer buffer;
+    try (RandomAccessFile file = new RandomAccessFile(source, "r")) {
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    }
+    if (buffer.capacity() < HEADER_SIZE
+        || buffer.getInt(0) != MAGIC
+        || buffer.getInt(4) != VERSION) {
+      throw new IOException("Not a log file.");
+    }
+    final int slotSize = buffer.getInt(8);
+    final int slotCount = buffer.getInt(12);
+    if (buffer.capacity() < HEADER_SIZE + (long) slotSize * slotCount) {
+      throw new IOException("Truncated log file.");
+    }
+    final String jid = readString(buffer, OFFSET_JID + 2, buffer.getShort(OFFSET_JID));
+
+    final List<long[]> slots = new ArrayList<>();
+    for (int it = 0; it < slotCount; ++it) {
+      final int offset = HEADER_SIZE + it * slotSize;
+      final long sequence = buffer.getLong(offset);
+      if (sequence != 0) {
+        slots.add(new long[] { sequence, offset });
+      }
+    }
+    Collections.sort(slots, (a, b) -> Long.compare(a[0], b[0]));
+
+    for (long[] slot : slots) {
+      final int offset = (int) slot[1];
+      final String[] payload = readString(
+          buffer,
+          offset + OFFSET_PAYLOAD + 2,
+          Math.min(buffer.getShort(offset + OFFSET_PAYLOAD), slotSize - OFFSET_PAYLOAD - 2)
+      ).split(String.valueOf(SEPARATOR), -1);
+      String message = payload[0];
+      if (payload.length > 1) {
+        try {
+          message = MessageFormat.format(
+              message,
+              (Object[]) Arrays.copyOfRange(payload, 1, payload.length)
+          );
+        } catch (IllegalArgumentException ex) {
+          message = Arrays.toString(payload);
+        }
+      }
+      String level;
+      try {
+        level = Level.parse(String.valueOf(buffer.getInt(offset + OFFSET_LEVEL))).getName();
+      } catch (IllegalArgumentException ex) {
+        level = String.valueOf(buffer.getInt(offset + OFFSET_LEVEL));
+      }
+      output.append(String.format(
+          Locale.ROOT,
+          "%1$tF %1$tT.%1$tL %2$s %3$s: %4$s%n",
+          new Date(buffer.getLong(offset + OFFSET_TIME)),
+          level,
+          jid,
+          message
+      ));
+    }
+  }
+
+  /**
+   * Constructs a {@link MmapLogHandler} with {@link #DEFAULT_SLOT_COUNT}.
+   */
+  public MmapLogHandler(@Nonnull final Session session, @Nonnull final File file)
+      throws IOException {
+    this(session, file, DEFAULT_SLOT_COUNT);
+  }
+
+  /**
+   * Default constructor. An existing file of the same geometry is appended to, otherwise it is
+   * overwritten.
+   */
+  public MmapLogHandler(@Nonnull final Session session,
+                        @Nonnull final File file,
+                        final int slotCount) throws IOException {
+    if (slotCount < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.session = session;
+    this.slotCount = slotCount;
+    final long size = HEADER_SIZE + (long) SLOT_SIZE * slotCount;
+    this.file = new RandomAccessFile(file, "rw");
+    final boolean reusable = this.file.length() == size
+        && this.file.readInt() == MAGIC
+        && this.file.readInt() == VERSION
+        && this.file.readInt() == SLOT_SIZE
+        && this.file.readInt() == slotCount;
+    if (!reusable) {
+      this.file.setLength(0);
+      this.file.setLength(size);
+    }
+    this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    if (reusable) {
+      this.nextSequence = new AtomicLong(buffer.getLong(OFFSET_NEXT_SEQUENCE));
+    } else {
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putInt(8, SLOT_SIZE);
+      buffer.putInt(12, slotCount);
+      this.nextSequence = new AtomicLong(0);
+    }
+  }
+
+  /**
+   * Writes the {@link Jid} of the {@link Session} into the header whenever it changes.
+   */
+  private void writeJid() {
+    final Jid jid = session.getNegotiatedJid().isEmpty()
+        ? session.getLoginJid()
+        : session.getNegotiatedJid();
+    if (jid == writtenJid) {
+      return;
+    }
+    writtenJid = jid;
+    final int length = encode(buffer, OFFSET_JID + 2, HEADER_SIZE, jid.toString());
+    buffer.putShort(OFFSET_JID, (short) length);
+  }
+
+  @Override
+  public void publish(@Nullable final LogRecord record) {
+    if (closed || record == null || !isLoggable(record)) {
+      return;
+    }
+    writeJid();
+    final long sequence = nextSequence.getAndIncrement();
+    final int offset = HEADER_SIZE + (int) (sequence % slotCount) * SLOT_SIZE;
+    final int payload = offset + OFFSET_PAYLOAD + 2;
+    final int limit = payload + PAYLOAD_CAPACITY;
+
+    buffer.putLong(offset, 0);
+    buffer.putLong(offset + OFFSET_TIME, record.getMillis());
+    buffer.putInt(offset + OFFSET_LEVEL, record.getLevel().intValue());
+    int cursor = payload;
+    if (record.getMessage() != null) {
+      cursor += encode(buffer, cursor, limit, record.getMessage());
+    }
+    final Object[] parameters = record.getParameters();
+    if (parameters != null) {
+      for (Object it : parameters) {
+        if (cursor >= limit) {
+          break;
+        }
+        buffer.put(cursor++, (byte) SEPARATOR);
+        cursor += encode(
+            buffer,
+            cursor,
+            limit,
+            it instanceof CharSequence ? (CharSequence) it : String.valueOf(it)
+        );
+      }
+    }
+    buffer.putShort(offset + OFFSET_PAYLOAD, (short) (cursor - payload));
+    buffer.putLong(offset, sequence + 1);
+    buffer.putLong(OFFSET_NEXT_SEQUENCE, nextSequence.get());
+  }
+
+  @Override
+  public void flush() {
+    if (!closed) {
+      buffer.force();
+    }
+  }
+
+  @Override
+  public void close() throws SecurityException {
+    if (closed) {
+      return;
+    }
+    flush();
+    closed = true;
+    try {
+      file.close();
+    } catch (IOException ex) {
+      reportError(null, ex, ErrorManager.CLOSE_FAILURE);
+    }
+  }
+
+  @Nonnull
+  @Override
+  public Session getSession() {
+    return session;
+  }
+}
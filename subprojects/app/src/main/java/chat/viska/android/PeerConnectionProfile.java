@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.preference.PreferenceManager;
+import java.util.List;
+import java.util.Locale;
+import javax.annotation.Nonnull;
+import org.webrtc.PeerConnection;
+
+/**
+ * Set of tunings of a {@link PeerConnection}. Which one is used can be forced using the
+ * preference {@link Application#KEY_PREF_CALL_PROFILE}, e.g. {@code "legacy"} to measure the
+ * setup latency without any tuning. It is selected according to the current network if the
+ * preference is absent or {@link Application#CALL_PROFILE_AUTO}.
+ */
+public enum PeerConnectionProfile {
+
+  /**
+   * Default settings of WebRTC, serving as the baseline of the other profiles.
+   */
+  LEGACY(0, false, false),
+
+  /**
+   * Gathers ICE candidates into a pool before the offer or answer exists and bundles all media
+   * on one transport.
+   */
+  PREFETCH(2, true, false),
+
+  /**
+   * Same as {@link #PREFETCH} but keeps gathering ICE candidates when the network changes.
+   */
+  CONTINUAL(2, true, true);
+
+  private final int candidatePoolSize;
+  private final boolean bundled;
+  private final boolean continual;
+
+  PeerConnectionProfile(final int candidatePoolSize,
+                        final boolean bundled,
+                        final boolean continual) {
+    this.candidatePoolSize = candidatePoolSize;
+    this.bundled = bundled;
+    this.continual = continual;
+  }
+
+  /**
+   * Selects a profile by the preference or by the type of the active network. Wi-Fi and Ethernet
+   * use {@link #PREFETCH}, while cellular networks use {@link #CONTINUAL} since handovers are
+   * more likely.
+   */
+  @Nonnull
+  public static PeerConnectionProfile select(@Nonnull final Context context) {
+    final String preference = PreferenceManager
+        .getDefaultSharedPreferences(context)
+        .getString(Application.KEY_PREF_CALL_PROFILE, Application.CALL_PROFILE_AUTO);
+    if (!Application.CALL_PROFILE_AUTO.equals(preference)) {
+      try {
+        return valueOf(preference.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException ex) {
+        // Fall back to auto
+      }
+    }
+    final ConnectivityManager manager = (ConnectivityManager) context.getSystemService(
+        Context.CONNECTIVITY_SERVICE
+    );
+    if (manager == null) {
+      return PREFETCH;
+    }
+    final Network network = manager.getActiveNetwork();
+    final NetworkCapabilities capabilities = network == null
+        ? null
+        : manager.getNetworkCapabilities(network);
+    if (capabilities != null
+        && capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+      return CONTINUAL;
+    } else {
+      return PREFETCH;
+    }
+  }
+
+  @Nonnull
+  public PeerConnection.RTCConfiguration createConfiguration(
+      @Nonnull final List<PeerConnection.IceServer> iceServers) {
+    final PeerConnection.RTCConfiguration configuration = new PeerConnection.RTCConfiguration(
+        iceServers
+    );
+    configuration.iceCandidatePoolSize = candidatePoolSize;
+    if (bundled) {
+      configuration.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+      configuration.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+    }
+    if (continual) {
+      configuration.continualGatheringPolicy = (
+          PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY
+      );
+    }
+    return configuration;
+  }
+}
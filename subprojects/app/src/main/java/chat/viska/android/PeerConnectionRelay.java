@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.webrtc.DataChannel;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaStream;
+import org.webrtc.PeerConnection;
+import org.webrtc.RtpReceiver;
+
+/**
+ * {@link PeerConnection.Observer} forwarding to another one which can be attached later. Allows
+ * a {@link PeerConnection} to be created before the {@link Call} using it exists. Events
+ * happening before a delegate is attached are dropped, which is harmless since no local
+ * description exists by then.
+ */
+class PeerConnectionRelay implements PeerConnection.Observer {
+
+  private volatile PeerConnection.Observer delegate;
+
+  void setDelegate(@Nullable final PeerConnection.Observer delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void onSignalingChange(@Nonnull final PeerConnection.SignalingState state) {
+    final PeerConnection.Observer delegate = this.delegate;
+    if (delegate != null) {
+      delegate.onSignalingChange(state);
+    }
+  }
+
+  @Override
+  public void onIceConnectionChange(@Nonnull final PeerConnection.IceConnectionState state) {
+    final PeerConnection.Observer delegate = this.delegate;
+    if (delegate != null) {
+      delegate.onIceConnectionChange(state);
+    }
+  }
+
+  @Override
+  public void onIceConnectionReceivingChange(final boolean receiving) {
+    final PeerConnection.Observer delegate = this.delegate;
+    if (delegate != null) {
+      delegate.onIceConnectionReceivingChange(receiving);
+    }
+  }
+
+  @Override
+  public void onIceGatheringChange(@Nonnull final PeerConnection.IceGatheringState state) {
+    final PeerConnection.Observer delegate = this.delegate;
+    if (delegate != null) {
+      delegate.onIceGatheringChange(state);
+    }
+  }
+
+  @Override
+  public void onIceCandidate(@Nonnull final IceCandidate candidate) {
+    final PeerConnection.Observer delegate = this.delegate;
+    if (delegate != null) {
+      delegate.onIceCandidate(candidate);
+    }
+  }
+
+  @Override
+  public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
+    final PeerConnection.Observer delegate = this.delegate;
+    if (delegate != null) {
+      delegate.onIceCandidatesRemoved(candidates);
+    }
+  }
+
+  @Override
+  public void onAddStream(final MediaStream stream) {
+    final PeerConnection.Observer delegate = this.delegate;
+    if (delegate != null) {
+      delegate.onAddStream(stream);
+    }
+  }
+
+  @Override
+  public void onRemoveStream(final MediaStream stream) {
+    final PeerConnection.Observer delegate = this.delegate;
+    if (delegate != null) {
+      delegate.onRemoveStream(stream);
+    }
+  }
+
+  @Override
+  public void onDataChannel(final DataChannel dataChannel) {
+    final PeerConnection.Observer delegate = this.delegate;
+    if (delegate != null) {
+      delegate.onDataChannel(dataChannel);
+    }
+  }
+
+  @Override
+  public void onRenegotiationNeeded() {
+    final PeerConnection.Observer delegate = this.delegate;
+    if (delegate != null) {
+      delegate.onRenegotiationNeeded();
+    }
+  }
+
+  @Override
+  public void onAddTrack(final RtpReceiver receiver, final MediaStream[] streams) {
+    final PeerConnection.Observer delegate = this.delegate;
+    if (delegate != null) {
+      delegate.onAddTrack(receiver, streams);
+    }
+  }
+}
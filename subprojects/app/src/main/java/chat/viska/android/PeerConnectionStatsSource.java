@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.os.SystemClock;
+import javax.annotation.Nonnull;
+import org.webrtc.PeerConnection;
+import org.webrtc.StatsReport;
+
+/**
+ * {@link StatsSource} reading the audio {@code ssrc} reports of {@link PeerConnection#getStats}.
+ * Packet loss and bitrates are derived from the counters of the previous sample. The loss of the
+ * sent audio comes from the receiver reports of the remote end on the {@code _send} reports.
+ */
+class PeerConnectionStatsSource implements StatsSource {
+
+  private final PeerConnection peerConnection;
+  private long lastTime = -1;
+  private long lastBytesSent;
+  private long lastBytesReceived;
+  private long lastPacketsReceived;
+  private long lastPacketsLost;
+  private long lastPacketsSent;
+  private long lastRemotePacketsLost;
+
+  private static long parse(@Nonnull final StatsReport.Value value) {
+    try {
+      return Long.parseLong(value.value);
+    } catch (NumberFormatException ex) {
+      return 0;
+    }
+  }
+
+  PeerConnectionStatsSource(@Nonnull final PeerConnection peerConnection) {
+    this.peerConnection = peerConnection;
+  }
+
+  private synchronized void onReports(@Nonnull final StatsReport[] reports,
+                                      @Nonnull final CallStats stats) {
+    final long time = SystemClock.elapsedRealtime();
+    long roundTripTime = 0;
+    long jitter = 0;
+    long bytesSent = 0;
+    long bytesReceived = 0;
+    long packetsReceived = 0;
+    long packetsLost = 0;
+    long packetsSent = 0;
+    long remotePacketsLost = 0;
+    long inputLevel = 0;
+    long outputLevel = 0;
+    for (StatsReport report : reports) {
+      if (!"ssrc".equals(report.type)) {
+        continue;
+      }
+      final boolean sending = report.id.endsWith("_send");
+      for (StatsReport.Value value : report.values) {
+        switch (value.name) {
+          case "googRtt":
+            roundTripTime = Math.max(roundTripTime, parse(value));
+            break;
+          case "googJitterReceived":
+            jitter = Math.max(jitter, parse(value));
+            break;
+          case "bytesSent":
+            bytesSent += parse(value);
+            break;
+          case "bytesReceived":
+            bytesReceived += parse(value);
+            break;
+          case "packetsReceived":
+            packetsReceived += parse(value);
+            break;
+          case "packetsSent":
+            packetsSent += parse(value);
+            break;
+          case "packetsLost":
+            if (sending) {
+              remotePacketsLost += parse(value);
+            } else {
+              packetsLost += parse(value);
+            }
+            break;
+          case "audioInputLevel":
+            inputLevel = Math.max(inputLevel, parse(value));
+            break;
+          case "audioOutputLevel":
+            outputLevel = Math.max(outputLevel, parse(value));
+            break;
+          default:
+            break;
+        }
+      }
+    }
+    if (lastTime >= 0 && time > lastTime) {
+      final long duration = time - lastTime;
+      final long received = packetsReceived - lastPacketsReceived;
+      final long lost = packetsLost - lastPacketsLost;
+      final long sent = packetsSent - lastPacketsSent;
+      final long remoteLost = remotePacketsLost - lastRemotePacketsLost;
+      stats.add(
+          time,
+          (int) roundTripTime,
+          (int) jitter,
+          received + lost > 0 ? (float) lost / (received + lost) : 0,
+          sent > 0 ? Math.min(1, Math.max(0, (float) remoteLost / sent)) : 0,
+          (int) ((bytesSent - lastBytesSent) * 8000 / duration),
+          (int) ((bytesReceived - lastBytesReceived) * 8000 / duration),
+          (int) inputLevel,
+          (int) outputLevel
+      );
+    }
+    lastTime = time;
+    lastBytesSent = bytesSent;
+    lastBytesReceived = bytesReceived;
+    lastPacketsReceived = packetsReceived;
+    lastPacketsLost = packetsLost;
+    lastPacketsSent = packetsSent;
+    lastRemotePacketsLost = remotePacketsLost;
+  }
+
+  @Override
+  public void collect(@Nonnull final CallStats stats) {
+    peerConnection.getStats(reports -> onReports(reports, stats), null);
+  }
+}
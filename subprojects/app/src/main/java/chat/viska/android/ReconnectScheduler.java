@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.os.SystemClock;
+import android.util.Log;
+import chat.viska.commons.DisposablesBin;
+import chat.viska.xmpp.Jid;
+import io.reactivex.Completable;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+/**
+ * Decides when accounts are logged in again. Network changes are debounced, failed accounts are
+ * retried with a jittered exponential backoff and logins of different accounts are spread over
+ * {@link #SPREAD} so that they do not hit the servers all at once. Accounts backing off are
+ * skipped by syncs and a sync is requested again when their backoff ends, so that they never hold
+ * up the logins of other accounts.
+ */
+public class ReconnectScheduler {
+
+  /**
+   * Statistics of the logins of an account.
+   */
+  public static class Record {
+
+    private volatile int attempts = 0;
+    private volatile int failures = 0;
+    private volatile long latency = -1;
+    private volatile long nextAttempt = 0;
+    private Disposable retry;
+
+    /**
+     * Gets the number of logins attempted so far.
+     */
+    public int getAttempts() {
+      return attempts;
+    }
+
+    /**
+     * Gets the number of consecutive failed logins.
+     */
+    public int getFailures() {
+      return failures;
+    }
+
+    /**
+     * Gets how long the last successful login took in milliseconds, or {@code -1} if none
+     * succeeded yet.
+     */
+    public long getLatency() {
+      return latency;
+    }
+
+    /**
+     * Gets the time in {@link SystemClock#elapsedRealtime()} before which the account will not be
+     * logged in again.
+     */
+    public long getNextAttempt() {
+      return nextAttempt;
+    }
+  }
+
+  /**
+   * Quiet period in milliseconds required after a network change before accounts are synced.
+   */
+  public static final long DEBOUNCE = 2000;
+
+  /**
+   * Backoff in milliseconds after the first failure.
+   */
+  public static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(2);
+
+  /**
+   * Upper bound of the backoff in milliseconds.
+   */
+  public static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+
+  /**
+   * Time window in milliseconds across which the logins of a sync are spread.
+   */
+  public static final int SPREAD = 1500;
+
+  private static final String LOG_TAG = "ReconnectScheduler";
+
+  private final Map<Jid, Record> records = new ConcurrentHashMap<>();
+  private final Subject<Object> networkChanges;
+  private final DisposablesBin bin = new DisposablesBin();
+  private final Random random = new Random();
+  private final Action sync;
+  private final Scheduler scheduler;
+
+  /**
+   * Constructs a {@link ReconnectScheduler} using {@link Schedulers#computation()}.
+   */
+  public ReconnectScheduler(@Nonnull final Action sync) {
+    this(sync, Schedulers.computation());
+  }
+
+  /**
+   * Default constructor.
+   * @param sync Syncs all accounts, invoked after network changes settle and whenever a backoff
+   *        ends.
+   * @param scheduler Runs all timers.
+   */
+  public ReconnectScheduler(@Nonnull final Action sync, @Nonnull final Scheduler scheduler) {
+    this.sync = sync;
+    this.scheduler = scheduler;
+    final PublishSubject<Object> unsafeNetworkChanges = PublishSubject.create();
+    this.networkChanges = unsafeNetworkChanges.toSerialized();
+    bin.add(networkChanges.debounce(DEBOUNCE, TimeUnit.MILLISECONDS, scheduler).subscribe(
+        it -> sync.run()
+    ));
+  }
+
+  @Nonnull
+  private Record getRecord(@Nonnull final Jid jid) {
+    final Record created = new Record();
+    final Record existing = records.putIfAbsent(jid, created);
+    return existing == null ? created : existing;
+  }
+
+  /**
+   * Computes a backoff between half and all of {@link #MIN_BACKOFF} doubled per failure.
+   */
+  private long getBackoff(final int failures) {
+    final long ceiling = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures - 1, 16));
+    return ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2));
+  }
+
+  private void onFailed(@Nonnull final Jid jid, @Nonnull final Record record) {
+    final long backoff;
+    synchronized (record) {
+      backoff = getBackoff(++record.failures);
+      record.nextAttempt = SystemClock.elapsedRealtime() + backoff;
+      if (record.retry != null) {
+        record.retry.dispose();
+      }
+      record.retry = Completable.timer(backoff, TimeUnit.MILLISECONDS, scheduler).subscribe(() -> {
+        synchronized (record) {
+          record.nextAttempt = 0;
+        }
+        sync.run();
+      });
+    }
+    Log.w(
+        LOG_TAG,
+        jid + " failed " + record.failures + " times in a row, retrying in " + backoff + " ms."
+    );
+  }
+
+  /**
+   * Notifies that the network has changed.
+   */
+  public void onNetworkChanged() {
+    networkChanges.onNext(this);
+  }
+
+  /**
+   * Checks if an account is still backing off after failed logins. Such an account is skipped by
+   * {@link #schedule(Jid, Completable, boolean)} and synced again once the backoff ends.
+   */
+  public boolean isBackingOff(@Nonnull final Jid jid) {
+    final Record record = records.get(jid);
+    return record != null && record.nextAttempt > SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Wraps a login of an account so that its outcome is recorded. Completes right away without
+   * logging in if the account {@link #isBackingOff(Jid)}.
+   * @param spread Whether to delay the login randomly within {@link #SPREAD}, which is only
+   *        useful when several accounts are logged in together.
+   */
+  @Nonnull
+  public Completable schedule(@Nonnull final Jid jid,
+                              @Nonnull final Completable login,
+                              final boolean spread) {
+    return Completable.defer(() -> {
+      if (isBackingOff(jid)) {
+        return Completable.complete();
+      }
+      final Record record = getRecord(jid);
+      final long delay = spread ? random.nextInt(SPREAD) : 0;
+      return Completable.timer(delay, TimeUnit.MILLISECONDS, scheduler).andThen(
+          Completable.defer(() -> {
+            synchronized (record) {
+              ++record.attempts;
+            }
+            final long start = SystemClock.elapsedRealtime();
+            return login.doOnComplete(() -> {
+              synchronized (record) {
+                record.failures = 0;
+                record.nextAttempt = 0;
+                record.latency = SystemClock.elapsedRealtime() - start;
+              }
+              Log.i(LOG_TAG, jid + " went online in " + record.latency + " ms.");
+            }).doOnError(ex -> onFailed(jid, record));
+          })
+      );
+    });
+  }
+
+  /**
+   * Forgets the backoff of an account, e.g. when the user logs it in manually.
+   */
+  public void reset(@Nonnull final Jid jid) {
+    final Record record = records.get(jid);
+    if (record != null) {
+      synchronized (record) {
+        record.failures = 0;
+        record.nextAttempt = 0;
+        if (record.retry != null) {
+          record.retry.dispose();
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the {@link Record}s of all accounts.
+   */
+  @Nonnull
+  public Map<Jid, Record> getRecords() {
+    return Collections.unmodifiableMap(records);
+  }
+
+  /**
+   * Cancels all pending timers.
+   */
+  public void dispose() {
+    bin.clear();
+    for (Record it : records.values()) {
+      synchronized (it) {
+        if (it.retry != null) {
+          it.retry.dispose();
+        }
+      }
+    }
+  }
+}
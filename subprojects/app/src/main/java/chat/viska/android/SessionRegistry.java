@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import chat.viska.xmpp.Jid;
+import chat.viska.xmpp.Session;
+import chat.viska.xmpp.StandardSession;
+import io.reactivex.Observable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Lock-free registry of the {@link StandardSession}s of all accounts. All transitions are atomic
+ * per {@link Jid} and iterating {@link #getSessions()} is always safe. A {@link StandardSession}
+ * is removed automatically once it is {@link Session.State#DISPOSED}. The {@link ChangeEvent}s of
+ * one {@link StandardSession} are always signaled in order: {@link ChangeEvent.Type#ADDED}, any
+ * number of {@link ChangeEvent.Type#STATE_CHANGED} and finally {@link ChangeEvent.Type#REMOVED}.
+ * Only signaling them takes a lock of that {@link StandardSession}.
+ */
+public class SessionRegistry {
+
+  /**
+   * Signaled when a {@link StandardSession} is added, removed or changes its state.
+   */
+  public static class ChangeEvent extends EventObject {
+
+    /**
+     * Type of a {@link ChangeEvent}.
+     */
+    public enum Type {
+      ADDED,
+      STATE_CHANGED,
+      REMOVED
+    }
+
+    private final Type type;
+    private final Jid jid;
+    private final Session.State state;
+
+    public ChangeEvent(@Nonnull final StandardSession source,
+                       @Nonnull final Type type,
+                       @Nonnull final Jid jid,
+                       @Nonnull final Session.State state) {
+      super(source);
+      this.type = type;
+      this.jid = jid;
+      this.state = state;
+    }
+
+    @Nonnull
+    public Type getType() {
+      return type;
+    }
+
+    @Nonnull
+    public Jid getJid() {
+      return jid;
+    }
+
+    /**
+     * Gets the state of the {@link StandardSession} at the time of this event.
+     */
+    @Nonnull
+    public Session.State getState() {
+      return state;
+    }
+
+    @Nonnull
+    @Override
+    public StandardSession getSource() {
+      return (StandardSession) super.getSource();
+    }
+  }
+
+  /**
+   * Tracks which {@link ChangeEvent}s of a {@link StandardSession} have been signaled. Events of
+   * one {@link StandardSession} are only signaled while holding its {@link Entry}.
+   */
+  private static class Entry {
+
+    @GuardedBy("this")
+    boolean added = false;
+
+    @GuardedBy("this")
+    boolean removed = false;
+
+    @GuardedBy("this")
+    Disposable subscription;
+  }
+
+  private final Map<Jid, StandardSession> sessions = new ConcurrentHashMap<>();
+  private final Map<StandardSession, Entry> entries = new ConcurrentHashMap<>();
+  private final Subject<ChangeEvent> changes;
+
+  public SessionRegistry() {
+    final PublishSubject<ChangeEvent> unsafeChanges = PublishSubject.create();
+    this.changes = unsafeChanges.toSerialized();
+  }
+
+  /**
+   * Signals {@link ChangeEvent.Type#ADDED} and starts signaling state changes, unless
+   * {@code session} was removed in the meantime. The {@link Entry} is registered before
+   * {@code session} so that a concurrent {@link #onRemoved(Jid, StandardSession)} always finds it.
+   */
+  private void onAdded(@Nonnull final Jid jid,
+                       @Nonnull final StandardSession session,
+                       @Nonnull final Entry entry) {
+    synchronized (entry) {
+      if (entry.added || entry.removed) {
+        return;
+      }
+      changes.onNext(new ChangeEvent(
+          session, ChangeEvent.Type.ADDED, jid, session.getState().getValue()
+      ));
+      entry.added = true;
+      entry.subscription = session.getState().getStream().subscribe(it -> {
+        synchronized (entry) {
+          if (entry.removed) {
+            return;
+          }
+          changes.onNext(new ChangeEvent(session, ChangeEvent.Type.STATE_CHANGED, jid, it));
+        }
+        if (it == Session.State.DISPOSED) {
+          remove(jid, session);
+        }
+      });
+    }
+  }
+
+  /**
+   * Signals {@link ChangeEvent.Type#REMOVED} if {@link ChangeEvent.Type#ADDED} was signaled, after
+   * which no more events of {@code session} are signaled.
+   */
+  private void onRemoved(@Nonnull final Jid jid, @Nonnull final StandardSession session) {
+    final Entry entry = entries.remove(session);
+    if (entry == null) {
+      return;
+    }
+    synchronized (entry) {
+      if (entry.removed) {
+        return;
+      }
+      entry.removed = true;
+      if (entry.subscription != null) {
+        entry.subscription.dispose();
+      }
+      if (entry.added) {
+        changes.onNext(new ChangeEvent(
+            session, ChangeEvent.Type.REMOVED, jid, session.getState().getValue()
+        ));
+      }
+    }
+  }
+
+  /**
+   * Adds a {@link StandardSession} unless one is already registered for {@code jid}.
+   * @return The {@link StandardSession} already registered, or {@code null} if {@code session}
+   *         was added.
+   */
+  @Nullable
+  public StandardSession add(@Nonnull final Jid jid, @Nonnull final StandardSession session) {
+    final Entry created = new Entry();
+    final Entry registered = entries.putIfAbsent(session, created);
+    final StandardSession existing = sessions.putIfAbsent(jid, session);
+    if (existing == null) {
+      onAdded(jid, session, registered == null ? created : registered);
+    } else if (registered == null) {
+      entries.remove(session, created);
+    }
+    return existing;
+  }
+
+  /**
+   * Registers a {@link StandardSession}, replacing any existing one of {@code jid}.
+   * @return The replaced {@link StandardSession}, which is not disposed by this method.
+   */
+  @Nullable
+  public StandardSession put(@Nonnull final Jid jid, @Nonnull final StandardSession session) {
+    final Entry created = new Entry();
+    final Entry registered = entries.putIfAbsent(session, created);
+    final StandardSession previous = sessions.put(jid, session);
+    if (previous == session) {
+      return previous;
+    }
+    if (previous != null) {
+      onRemoved(jid, previous);
+    }
+    onAdded(jid, session, registered == null ? created : registered);
+    return previous;
+  }
+
+  /**
+   * Removes {@code session} only if it is still the one registered for {@code jid}.
+   */
+  public boolean remove(@Nonnull final Jid jid, @Nonnull final StandardSession session) {
+    if (sessions.remove(jid, session)) {
+      onRemoved(jid, session);
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Removes whichever {@link StandardSession} is registered for {@code jid}.
+   */
+  @Nullable
+  public StandardSession remove(@Nonnull final Jid jid) {
+    final StandardSession removed = sessions.remove(jid);
+    if (removed != null) {
+      onRemoved(jid, removed);
+    }
+    return removed;
+  }
+
+  @Nullable
+  public StandardSession get(@Nonnull final Jid jid) {
+    return sessions.get(jid);
+  }
+
+  /**
+   * Gets a read-only view of all {@link StandardSession}s. Iterating it never throws
+   * {@link java.util.ConcurrentModificationException} but may or may not reflect concurrent
+   * changes.
+   */
+  @Nonnull
+  public Map<Jid, StandardSession> getSessions() {
+    return Collections.unmodifiableMap(sessions);
+  }
+
+  public boolean isEmpty() {
+    return sessions.isEmpty();
+  }
+
+  /**
+   * Gets a stream of {@link ChangeEvent}s.
+   */
+  @Nonnull
+  public Observable<ChangeEvent> getChanges() {
+    return changes;
+  }
+}
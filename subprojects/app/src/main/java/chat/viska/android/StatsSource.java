@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Source of quality samples of a {@link Call}, polled by the {@link Call} while it is
+ * {@link Call.State#STREAMING}. Replaceable by {@link Call#setStatsSource(StatsSource)}, e.g.
+ * with synthetic samples.
+ */
+public interface StatsSource {
+
+  /**
+   * Collects one sample and adds it to {@code stats}, either synchronously or later from any
+   * thread.
+   */
+  void collect(@Nonnull CallStats stats);
+}
@@ -20,19 +20,23 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.OnAccountsUpdateListener;
 import android.app.Notification;
+import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.net.ConnectivityManager;
+import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.net.Uri;
 import android.os.Build;
+import android.util.Log;
 import android.widget.Toast;
 import chat.viska.R;
 import chat.viska.android.demo.CallingActivity;
+import chat.viska.commons.DisposablesBin;
 import chat.viska.commons.reactive.MutableReactiveObject;
 import chat.viska.commons.reactive.ReactiveObject;
 import chat.viska.xmpp.Connection;
@@ -41,24 +45,39 @@ import chat.viska.xmpp.Jid;
 import chat.viska.xmpp.Session;
 import chat.viska.xmpp.StandardSession;
 import chat.viska.xmpp.plugins.BasePlugin;
+import chat.viska.xmpp.plugins.metrics.Histogram;
+import chat.viska.xmpp.plugins.metrics.MetricsPlugin;
+import chat.viska.xmpp.plugins.ping.PingPlugin;
 import chat.viska.xmpp.plugins.webrtc.WebRtcPlugin;
 import io.reactivex.Completable;
 import io.reactivex.Observable;
+import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.functions.Action;
 import io.reactivex.functions.Consumer;
 import io.reactivex.schedulers.Schedulers;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import javax.annotation.Nonnull;
-import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.Nullable;
 
 public class XmppService extends Service {
 
@@ -68,39 +87,99 @@ public class XmppService extends Service {
     public XmppService getService() {
       return XmppService.this;
     }
+
+    /**
+     * Gets the {@link MetricsPlugin}s of all {@link StandardSession}s.
+     */
+    @Nonnull
+    public Map<Jid, MetricsPlugin> getMetrics() {
+      final Map<Jid, MetricsPlugin> result = new HashMap<>();
+      for (Map.Entry<Jid, StandardSession> it : sessions.getSessions().entrySet()) {
+        final MetricsPlugin plugin = it.getValue().getPluginManager().getPlugin(
+            MetricsPlugin.class
+        );
+        if (plugin != null) {
+          result.put(it.getKey(), plugin);
+        }
+      }
+      return result;
+    }
   }
 
-  @GuardedBy("itself")
-  private final HashMap<Jid, StandardSession> sessions = new HashMap<>();
+  /**
+   * Maximum number of accounts being logged in at the same time by {@link #syncAllAccounts()}.
+   */
+  private static final int MAX_CONCURRENT_LOGINS = 4;
+
+  private static final String LOG_TAG = "XmppService";
+  private static final String LOG_DIRECTORY = "logs";
+
+  /**
+   * Minimum time in milliseconds between 2 updates of the foreground notification. Changes within
+   * the period are coalesced.
+   */
+  private static final long NOTIFICATION_INTERVAL = 500;
+
+  private final SessionRegistry sessions = new SessionRegistry();
   private final Binder binder = new Binder();
+  private final DisposablesBin bin = new DisposablesBin();
+  private final Map<Jid, Handler> ringHandlers = new ConcurrentHashMap<>();
+  private final MutableReactiveObject<Integer> onlineCount = new MutableReactiveObject<>(0);
+  private final AtomicInteger pendingLogins = new AtomicInteger();
+  private boolean isPromoted = false;
   private final MutableReactiveObject<Boolean> isSyncingAccounts = new MutableReactiveObject<>(false);
   private final MutableReactiveObject<Boolean> hasInternet = new MutableReactiveObject<>(false);
+  private final Set<Network> availableNetworks = Collections.newSetFromMap(
+      new ConcurrentHashMap<>()
+  );
   private AccountManager accountManager;
+  private DnsCache dnsCache;
+  private ConnectionRacer connectionRacer;
+  private volatile List<InetAddress> dns;
+  private CallEngine callEngine;
 
-  private final OnAccountsUpdateListener accountsListener = accounts -> {
-    isSyncingAccounts().getStream().filter(it -> !it).firstElement().subscribe(it -> {
-      if (hasInternet.getValue()) {
-        syncAllAccounts();
-      }
-    });
-  };
+  private final ReconnectScheduler reconnectScheduler = new ReconnectScheduler(this::requestSync);
+  private HeartbeatScheduler heartbeatScheduler;
+  private final OnAccountsUpdateListener accountsListener = accounts -> requestSync();
   private final ConnectivityManager.NetworkCallback networkListener = new ConnectivityManager.NetworkCallback() {
 
     @Override
     public void onAvailable(Network network) {
       super.onAvailable(network);
+      dns = null;
+      availableNetworks.add(network);
       hasInternet.setValue(true);
-      syncAllAccounts();
+      reconnectScheduler.onNetworkChanged();
+      callEngine.onNetworkChanged(false);
     }
 
+    /**
+     * Only kills the connections if no network is left. Otherwise, e.g. when Wi-Fi is lost while
+     * cellular is up, the remaining network does not call {@link #onAvailable(Network)} again, so
+     * the handover is started here.
+     */
     @Override
     public void onLost(Network network) {
       super.onLost(network);
-      hasInternet.setValue(false);
-      for (StandardSession session : sessions.values()) {
-        session.killConnection().subscribeOn(Schedulers.io()).subscribe();
+      dns = null;
+      availableNetworks.remove(network);
+      if (availableNetworks.isEmpty()) {
+        hasInternet.setValue(false);
+        for (StandardSession session : sessions.getSessions().values()) {
+          session.killConnection().subscribeOn(Schedulers.io()).subscribe();
+        }
+        callEngine.onNetworkChanged(true);
+      } else {
+        reconnectScheduler.onNetworkChanged();
+        callEngine.onNetworkChanged(false);
       }
     }
+
+    @Override
+    public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+      super.onLinkPropertiesChanged(network, linkProperties);
+      dns = null;
+    }
   };
 
   @Nonnull
@@ -112,27 +191,59 @@ public class XmppService extends Service {
     }
   }
 
-  /**
-   * Puts the service into foreground and refresh the notification description.
-   */
-  private void startForeground() {
+  @Nonnull
+  private Notification buildNotification(final int online) {
     final Notification.Builder builder = Build.VERSION.SDK_INT >= 26
         ? new Notification.Builder(this, Application.KEY_NOTIF_CHANNEL_SYSTEM)
         : new Notification.Builder(this);
-    builder
+    return builder
         .setContentTitle(getString(R.string.title_app_running))
         .setSmallIcon(R.drawable.icon)
-        .setOngoing(true);
-    builder.setContentText(
-        getString(
-            R.string.app_running,
-            Observable.fromIterable(this.sessions.values()).filter(
-                it -> it.getState().getValue() == Session.State.ONLINE
-            ).count().blockingGet()
-        )
-    );
-    startForeground(R.id.notif_running, builder.build());
-    startService(new Intent(this, this.getClass()));
+        .setOngoing(true)
+        .setContentText(getString(R.string.app_running, online))
+        .build();
+  }
+
+  /**
+   * Schedules {@link #applyPromotion()} on the main thread. Call it whenever {@link #sessions} or
+   * {@link #pendingLogins} changes.
+   */
+  private void updatePromotion() {
+    AndroidSchedulers.mainThread().scheduleDirect(this::applyPromotion);
+  }
+
+  /**
+   * Puts the service into foreground while any session exists or is logging in, and out of it
+   * otherwise. The decision is made from the latest state each time and only on the main thread,
+   * so that concurrent logins and removals cannot leave it in the wrong state. The notification
+   * is kept up to date by {@link #onlineCount} while promoted.
+   */
+  private void applyPromotion() {
+    final boolean needed = !sessions.isEmpty() || pendingLogins.get() > 0;
+    if (needed == isPromoted) {
+      return;
+    }
+    isPromoted = needed;
+    if (needed) {
+      startForeground(R.id.notif_running, buildNotification(onlineCount.getValue()));
+      startService(new Intent(this, this.getClass()));
+    } else {
+      stopForeground(true);
+    }
+  }
+
+  /**
+   * Updates {@link #onlineCount} by counting the sessions in {@link #sessions} anew, so that
+   * events delivered late cannot make it drift.
+   */
+  private void countOnline() {
+    int count = 0;
+    for (StandardSession it : sessions.getSessions().values()) {
+      if (it.getState().getValue() == Session.State.ONLINE) {
+        ++count;
+      }
+    }
+    onlineCount.changeValue(count);
   }
 
   /**
@@ -146,20 +257,20 @@ public class XmppService extends Service {
   private StandardSession constructSession(@Nonnull final Jid jid,
                                            @Nonnull final Connection connection) {
     final StandardSession session;
-    synchronized (this.sessions) {
-      try {
-        session = StandardSession.getInstance(Collections.singleton(connection.getProtocol()));
-      } catch (Exception ex) {
-        throw new UnsupportedOperationException(
-            getString(R.string.server_uses_unsupported_protocol)
-        );
-      }
-      this.sessions.put(jid, session);
+    try {
+      session = StandardSession.getInstance(Collections.singleton(connection.getProtocol()));
+    } catch (Exception ex) {
+      throw new UnsupportedOperationException(
+          getString(R.string.server_uses_unsupported_protocol)
+      );
     }
+    this.sessions.put(jid, session);
 
     session.setConnection(connection);
     session.setLoginJid(jid);
+    session.getPluginManager().apply(MetricsPlugin.class);
     session.getPluginManager().apply(BasePlugin.class);
+    session.getPluginManager().apply(PingPlugin.class);
 
     session.getPluginManager().apply(WebRtcPlugin.class);
     final WebRtcPlugin webRtcPlugin = session.getPluginManager().getPlugin(WebRtcPlugin.class);
@@ -169,125 +280,267 @@ public class XmppService extends Service {
     ).filter(
         WebRtcPlugin.SdpReceivedEvent::isCreating
     ).subscribe(it -> {
+      callEngine.prepareInboundCall(session, it);
       final Intent intent = new Intent(this, CallingActivity.class);
       intent.setAction(CallingActivity.ACTION_CALL_INBOUND);
       intent.setData(Uri.fromParts("xmpp", it.getRemoteJid().toString(), null));
       intent.putExtra(CallingActivity.EXTRA_LOCAL_JID, session.getLoginJid().toString());
       intent.putExtra(CallingActivity.EXTRA_SESSION_ID, it.getId());
-      intent.putExtra(CallingActivity.EXTRA_REMOTE_SDP, it.getSdp().description);
       intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
       startActivity(intent);
     });
 
-
+    final Handler loggingHandler = new LogcatHandler(session);
     if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
-      session.getLogger().setLevel(Level.WARNING);
+      session.getLogger().setLevel(Level.INFO);
+      loggingHandler.setLevel(Level.WARNING);
     } else {
       session.getLogger().setLevel(Level.ALL);
+      loggingHandler.setLevel(Level.ALL);
     }
-    final Handler loggingHandler = new LogcatHandler(session);
-    loggingHandler.setLevel(Level.ALL);
     session.getLogger().addHandler(loggingHandler);
+    final Handler previousRingHandler = ringHandlers.remove(jid);
+    if (previousRingHandler != null) {
+      previousRingHandler.close();
+    }
+    try {
+      final File logFile = getLogFile(jid);
+      logFile.getParentFile().mkdirs();
+      final Handler ringHandler = new MmapLogHandler(session, logFile);
+      ringHandler.setLevel(Level.ALL);
+      ringHandlers.put(jid, ringHandler);
+      session.getLogger().addHandler(ringHandler);
+      session
+          .getState()
+          .getStream()
+          .filter(it -> it == Session.State.DISPOSED)
+          .firstElement()
+          .subscribe(it -> {
+            ringHandlers.remove(jid, ringHandler);
+            ringHandler.close();
+          });
+    } catch (IOException ex) {
+      Log.w(LOG_TAG, "Failed to open the log file of " + jid, ex);
+    }
 
-    session
-        .getState()
-        .getStream()
-        .filter(it -> it == Session.State.DISPOSED)
-        .observeOn(AndroidSchedulers.mainThread())
-        .subscribe(it -> {
-          synchronized (this.sessions) {
-            if (this.sessions.containsValue(session)) {
-              this.sessions.remove(jid);
-            }
-            if (this.sessions.size() == 0) {
-              stopForeground(true);
-            }
-          }
-        });
-    session
-        .getState()
-        .getStream()
-        .filter(it -> it == Session.State.DISCONNECTED)
-        .observeOn(AndroidSchedulers.mainThread())
-        .subscribe(it -> startForeground());
     return session;
   }
 
+  /**
+   * Checks if a login failed because the server could not be reached, in which case its cached
+   * DNS records may be outdated.
+   */
+  private static boolean isConnectionError(@Nullable Throwable cause) {
+    while (cause != null) {
+      if (cause instanceof IOException
+          || cause instanceof TimeoutException
+          || cause instanceof DnsQueryException) {
+        return true;
+      }
+      cause = cause.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * Gets the DNS servers of all networks with Internet access. The result is cached until the
+   * networks change.
+   */
   @Nonnull
   private List<InetAddress> getDns() {
+    final List<InetAddress> cached = dns;
+    if (cached != null) {
+      return cached;
+    }
     final ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(
         CONNECTIVITY_SERVICE
     );
     if (connectivityManager == null) {
       return Collections.emptyList();
     }
-    return Observable.fromArray(
-        connectivityManager.getAllNetworks()
-    ).filter(it -> connectivityManager.getNetworkCapabilities(it).hasCapability(
-        NetworkCapabilities.NET_CAPABILITY_INTERNET
-    )).map(connectivityManager::getLinkProperties).flatMap(
-        it -> Observable.fromIterable(it.getDnsServers())
-    ).toList().blockingGet();
+    final List<InetAddress> result = new ArrayList<>();
+    for (Network network : connectivityManager.getAllNetworks()) {
+      final NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+      final LinkProperties properties = connectivityManager.getLinkProperties(network);
+      if (capabilities != null
+          && properties != null
+          && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
+        result.addAll(properties.getDnsServers());
+      }
+    }
+    dns = Collections.unmodifiableList(result);
+    return dns;
+  }
+
+  /**
+   * Reads the priority of an account from its user data. Accounts with higher priorities are
+   * logged in first.
+   */
+  private int getPriority(@Nonnull final Account account) {
+    try {
+      return Integer.parseInt(
+          accountManager.getUserData(account, getString(R.string.api_account_priority))
+      );
+    } catch (NumberFormatException ex) {
+      return 0;
+    }
   }
 
+  /**
+   * Invokes {@link #syncAllAccounts()} once the ongoing sync finishes if there is Internet access.
+   */
+  private void requestSync() {
+    isSyncingAccounts().getStream().filter(it -> !it).firstElement().subscribe(it -> {
+      if (hasInternet.getValue()) {
+        syncAllAccounts();
+      }
+    });
+  }
+
+  /**
+   * Logs in all enabled accounts and logs out the removed ones. At most
+   * {@link #MAX_CONCURRENT_LOGINS} accounts are logged in at the same time, in the order of their
+   * priorities, and accounts on the same domain share one DNS query. Each login is timed by the
+   * {@link ReconnectScheduler} and accounts still backing off are left to it.
+   */
   public void syncAllAccounts() {
     Completable.fromAction(() -> {
       if (this.isSyncingAccounts.getValue()) {
         return;
       }
       this.isSyncingAccounts.changeValue(true);
-      final List<Jid> enabled = Observable.fromArray(
-          this.accountManager.getAccountsByType(getString(R.string.api_account_type))
-      ).map(it -> new Jid(it.name)).toList().blockingGet();
-
-      final Set<Jid> toRemove;
-      final Set<Jid> toLogin;
-      final Set<Jid> toRemain;
+      final String accountType = getString(R.string.api_account_type);
+      final Map<Jid, Account> enabled = new HashMap<>();
+      for (Account it : this.accountManager.getAccountsByType(accountType)) {
+        enabled.put(new Jid(it.name), it);
+      }
 
-      final Consumer<Throwable> errorConsumer = ex -> {
-        Toast.makeText(this, ex.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-      };
-      synchronized (this.sessions) {
-        toRemove = new HashSet<>(this.sessions.keySet());
-        toRemove.removeAll(enabled);
-        toLogin = new HashSet<>(enabled);
-        toLogin.removeAll(this.sessions.keySet());
-        toRemain = new HashSet<>(this.sessions.keySet());
-        toRemain.removeAll(toRemove);
-
-        for (Jid it : toRemove) {
-          this.sessions.get(it).dispose().subscribe();
+      final List<StandardSession> toRemove = new ArrayList<>();
+      final Set<Jid> toLogin = new HashSet<>();
+      final Set<Jid> toReconnect = new HashSet<>();
+      final Map<Jid, StandardSession> snapshot = new HashMap<>(this.sessions.getSessions());
+      for (Map.Entry<Jid, StandardSession> it : snapshot.entrySet()) {
+        if (!enabled.containsKey(it.getKey())) {
+          toRemove.add(it.getValue());
+        } else if (it.getValue().getState().getValue() == Session.State.DISCONNECTED) {
+          toReconnect.add(it.getKey());
         }
-        for (Jid it : toLogin) {
-          login(
-              it,
-              this.accountManager.getPassword(
-                  new Account(it.toString(), getString(R.string.api_account_type))
-              ),
-              true
-          ).observeOn(AndroidSchedulers.mainThread()).subscribe(() -> {}, errorConsumer);
+      }
+      toLogin.addAll(enabled.keySet());
+      toLogin.removeAll(snapshot.keySet());
+      for (StandardSession it : toRemove) {
+        it.dispose().subscribe();
+      }
+
+      final List<Jid> queue = new ArrayList<>(toLogin);
+      queue.addAll(toReconnect);
+      for (Iterator<Jid> it = queue.iterator(); it.hasNext();) {
+        if (reconnectScheduler.isBackingOff(it.next())) {
+          it.remove();
         }
-        for (Jid it : toRemain) {
-          final StandardSession session = this.sessions.get(it);
-          if (session.getState().getValue() == Session.State.DISCONNECTED) {
-            login(
-                it,
-                this.accountManager.getPassword(
-                    new Account(it.toString(), getString(R.string.api_account_type))
-                ),
-                false
-            ).observeOn(AndroidSchedulers.mainThread()).subscribe(() -> {}, errorConsumer);
-          }
+      }
+      final Map<Jid, Integer> priorities = new HashMap<>();
+      for (Jid it : queue) {
+        priorities.put(it, getPriority(enabled.get(it)));
+      }
+      Collections.sort(queue, (a, b) -> Integer.compare(priorities.get(b), priorities.get(a)));
+
+      final List<InetAddress> dns = getDns();
+      final Map<String, Single<List<Connection>>> dnsQueries = new HashMap<>();
+      for (Jid it : toLogin) {
+        if (!dnsQueries.containsKey(it.getDomainPart())) {
+          dnsQueries.put(
+              it.getDomainPart(),
+              dnsCache.query(it.getDomainPart(), dns)
+          );
         }
       }
-      this.isSyncingAccounts.changeValue(false);
+
+      final Consumer<Throwable> errorConsumer = ex -> {
+        Toast.makeText(this, ex.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+      };
+      Observable.fromIterable(queue).flatMap(jid -> this.reconnectScheduler.schedule(
+          jid,
+          Completable.defer(() -> login(
+              jid,
+              this.accountManager.getPassword(enabled.get(jid)),
+              toLogin.contains(jid),
+              dnsQueries.get(jid.getDomainPart())
+          )),
+          queue.size() > 1
+      ).observeOn(
+          AndroidSchedulers.mainThread()
+      ).doOnError(errorConsumer).onErrorComplete().toObservable(), MAX_CONCURRENT_LOGINS).doFinally(
+          () -> this.isSyncingAccounts.changeValue(false)
+      ).subscribe();
     }).subscribeOn(Schedulers.io()).subscribe();
+  }
+
+  /**
+   * Gets how long the last login of each account took from the start of the login until the
+   * account went online, in milliseconds.
+   */
+  @Nonnull
+  public Map<Jid, Long> getLoginDurations() {
+    final Map<Jid, Long> result = new HashMap<>();
+    for (Map.Entry<Jid, ReconnectScheduler.Record> it
+        : reconnectScheduler.getRecords().entrySet()) {
+      if (it.getValue().getLatency() >= 0) {
+        result.put(it.getKey(), it.getValue().getLatency());
+      }
+    }
+    return Collections.unmodifiableMap(result);
+  }
 
+  /**
+   * Gets the file the {@link MmapLogHandler} of an account writes to. It can be decoded using
+   * {@link MmapLogHandler#decode(File, Appendable)}.
+   */
+  @Nonnull
+  public File getLogFile(@Nonnull final Jid jid) {
+    return new File(new File(getFilesDir(), LOG_DIRECTORY), jid.toBareJid() + ".log");
+  }
+
+  /**
+   * Gets the {@link HeartbeatScheduler} keeping all {@link StandardSession}s alive.
+   */
+  @Nonnull
+  public HeartbeatScheduler getHeartbeatScheduler() {
+    return heartbeatScheduler;
   }
 
+  /**
+   * Gets the {@link ReconnectScheduler} deciding when accounts are logged in again.
+   */
+  @Nonnull
+  public ReconnectScheduler getReconnectScheduler() {
+    return reconnectScheduler;
+  }
+
+  /**
+   * Gets a read-only view of all {@link StandardSession}s, which is safe to iterate from any
+   * thread.
+   */
   @Nonnull
   public Map<Jid, StandardSession> getSessions() {
-    return Collections.unmodifiableMap(sessions);
+    return sessions.getSessions();
+  }
+
+  /**
+   * Gets the {@link SessionRegistry} for observing {@link StandardSession}s being added, removed
+   * or changing states.
+   */
+  @Nonnull
+  public SessionRegistry getSessionRegistry() {
+    return sessions;
+  }
+
+  /**
+   * Gets the {@link CallEngine} owning all ongoing {@link Call}s.
+   */
+  @Nonnull
+  public CallEngine getCallEngine() {
+    return callEngine;
   }
 
   @Nonnull
@@ -302,52 +555,85 @@ public class XmppService extends Service {
   public Completable login(@Nonnull final Jid jid,
                            @Nonnull final String password,
                            final boolean replaceExisting) {
+    reconnectScheduler.reset(jid);
+    return login(jid, password, replaceExisting, null);
+  }
+
+  /**
+   * Same as {@link #login(Jid, String, boolean)} but reuses a DNS query of the domain. Keeps the
+   * service in foreground while subscribed.
+   * @param dnsQuery DNS query of the domain of {@code jid}, or {@code null} to query anew.
+   */
+  @Nonnull
+  private Completable login(@Nonnull final Jid jid,
+                            @Nonnull final String password,
+                            final boolean replaceExisting,
+                            @Nullable final Single<List<Connection>> dnsQuery) {
+    return Completable.defer(
+        () -> startLogin(jid, password, replaceExisting, dnsQuery)
+    ).doOnSubscribe(it -> {
+      pendingLogins.incrementAndGet();
+      updatePromotion();
+    }).doFinally(() -> {
+      pendingLogins.decrementAndGet();
+      updatePromotion();
+    });
+  }
+
+  @Nonnull
+  private Completable startLogin(@Nonnull final Jid jid,
+                                 @Nonnull final String password,
+                                 final boolean replaceExisting,
+                                 @Nullable final Single<List<Connection>> dnsQuery) {
     final Action cancellation = () -> {
-      synchronized (sessions) {
-        final StandardSession session = sessions.get(jid);
-        if (session != null) {
-          session.killConnection().subscribeOn(Schedulers.io()).subscribe();
-        }
-      }
-    };
-    startForeground();
-    synchronized (sessions) {
       final StandardSession session = sessions.get(jid);
       if (session != null) {
-        if (replaceExisting) {
-          sessions.remove(jid);
-          session.dispose().subscribeOn(Schedulers.io()).subscribe();
-        } else {
-          switch (session.getState().getValue()) {
-            case ONLINE:
-              return Completable.complete();
-            case CONNECTING:
-              return session.getState()
-                  .getStream()
-                  .filter(it -> it == Session.State.ONLINE)
-                  .firstOrError()
-                  .toCompletable();
-            case HANDSHAKING:
-              return session.getState()
-                  .getStream()
-                  .filter(it -> it == Session.State.ONLINE)
-                  .firstOrError()
-                  .toCompletable();
-            default:
-              return session.killConnection()
-                  .andThen(session.login(password))
-                  .doOnError(ex -> cancellation.run())
-                  .doOnComplete(this::startForeground)
-                  .doOnDispose(cancellation);
-          }
+        session.killConnection().subscribeOn(Schedulers.io()).subscribe();
+      }
+    };
+    final StandardSession existing = sessions.get(jid);
+    if (existing != null) {
+      if (replaceExisting) {
+        if (sessions.remove(jid, existing)) {
+          existing.dispose().subscribeOn(Schedulers.io()).subscribe();
+        }
+      } else {
+        switch (existing.getState().getValue()) {
+          case ONLINE:
+            return Completable.complete();
+          case CONNECTING:
+            return existing.getState()
+                .getStream()
+                .filter(it -> it == Session.State.ONLINE)
+                .firstOrError()
+                .toCompletable();
+          case HANDSHAKING:
+            return existing.getState()
+                .getStream()
+                .filter(it -> it == Session.State.ONLINE)
+                .firstOrError()
+                .toCompletable();
+          default:
+            return existing.killConnection()
+                .andThen(existing.login(password))
+                .doOnError(ex -> cancellation.run())
+                .doOnDispose(cancellation);
         }
       }
     }
-    return Connection
-        .queryDns(jid.getDomainPart(), getDns())
-        .flatMapMaybe(
-            it -> Observable.fromIterable(it).filter(Connection::isTlsEnabled).firstElement()
-        )
+    final Single<List<Connection>> connections = dnsQuery == null
+        ? dnsCache.query(jid.getDomainPart(), getDns())
+        : dnsQuery;
+    return connections
+        .flatMapMaybe(it -> {
+          final List<Connection> secure = new ArrayList<>();
+          for (Connection connection : it) {
+            if (connection.isTlsEnabled()) {
+              secure.add(connection);
+            }
+          }
+          return connectionRacer.race(jid.getDomainPart(), secure);
+        })
         .doOnComplete(() -> {
           throw new UnsupportedOperationException(
               getString(R.string.server_has_no_secure_connection)
@@ -355,11 +641,70 @@ public class XmppService extends Service {
         })
         .map(connection -> constructSession(jid, connection))
         .flatMapCompletable(it -> it.login(password))
-        .doOnError(ex -> cancellation.run())
-        .doOnComplete(this::startForeground)
+        .doOnError(ex -> {
+          if (isConnectionError(ex)) {
+            dnsCache.invalidate(jid.getDomainPart());
+            connectionRacer.forget(jid.getDomainPart());
+          }
+          cancellation.run();
+        })
         .doOnDispose(cancellation);
   }
 
+  /**
+   * Prints the metrics of all {@link StandardSession}s, shown by
+   * {@code adb shell dumpsys activity service chat.viska/.android.XmppService}. Appending
+   * {@code log <jid>} prints the decoded {@link MmapLogHandler} file of an account instead, which
+   * also works on release builds.
+   */
+  @Override
+  protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+    if (args != null && args.length >= 2 && "log".equals(args[0])) {
+      try {
+        final Jid jid = new Jid(args[1]);
+        final Handler ringHandler = ringHandlers.get(jid);
+        if (ringHandler != null) {
+          ringHandler.flush();
+        }
+        MmapLogHandler.decode(getLogFile(jid), writer);
+      } catch (Exception ex) {
+        writer.println("Failed to read the log of " + args[1] + ": " + ex);
+      }
+      return;
+    }
+    for (Map.Entry<Jid, MetricsPlugin> it : binder.getMetrics().entrySet()) {
+      writer.print(it.getKey());
+      writer.print(" (");
+      writer.print(it.getValue().getSession().getState().getValue());
+      writer.println("):");
+      it.getValue().dump(writer, "  ");
+      final ReconnectScheduler.Record record = reconnectScheduler.getRecords().get(it.getKey());
+      if (record != null) {
+        writer.print("  Logins: attempts=");
+        writer.print(record.getAttempts());
+        writer.print(" failures=");
+        writer.print(record.getFailures());
+        writer.print(" latency=");
+        writer.println(record.getLatency());
+      }
+      final Long roundTripTime = heartbeatScheduler.getRoundTripTimes().get(it.getKey());
+      if (roundTripTime != null) {
+        writer.print("  Ping (ms): ");
+        writer.println(roundTripTime);
+      }
+    }
+    writer.print("Heartbeat interval (ms): ");
+    writer.println(heartbeatScheduler.getInterval());
+    writer.println("Call setup latencies (ms):");
+    for (Map.Entry<CallTimeline.Event, Histogram> it
+        : callEngine.getSetupLatencies().entrySet()) {
+      writer.print("  ");
+      writer.print(it.getKey().name().toLowerCase(Locale.ROOT));
+      writer.print(": ");
+      writer.println(it.getValue());
+    }
+  }
+
   @Override
   public Binder onBind(final Intent intent) {
     return binder;
@@ -368,6 +713,31 @@ public class XmppService extends Service {
   @Override
   public void onCreate() {
     super.onCreate();
+    callEngine = new CallEngine((Application) getApplication());
+    dnsCache = new DnsCache(this);
+    connectionRacer = new ConnectionRacer(this);
+    heartbeatScheduler = new HeartbeatScheduler(this, sessions, jid -> {
+      final StandardSession session = sessions.get(jid);
+      if (session != null) {
+        session.killConnection().subscribeOn(Schedulers.io()).subscribe(this::requestSync);
+      }
+    });
+    heartbeatScheduler.start();
+    bin.add(sessions.getChanges().filter(
+        it -> it.getType() != SessionRegistry.ChangeEvent.Type.STATE_CHANGED
+    ).subscribe(it -> updatePromotion()));
+    bin.add(sessions.getChanges().subscribe(it -> countOnline()));
+    bin.add(onlineCount.getStream().throttleLast(
+        NOTIFICATION_INTERVAL,
+        TimeUnit.MILLISECONDS
+    ).distinctUntilChanged().observeOn(AndroidSchedulers.mainThread()).subscribe(it -> {
+      if (isPromoted) {
+        getSystemService(NotificationManager.class).notify(
+            R.id.notif_running,
+            buildNotification(it)
+        );
+      }
+    }));
     try {
       accountManager = AccountManager.get(this);
     } catch (SecurityException ex) {
@@ -409,7 +779,11 @@ public class XmppService extends Service {
         networkListener
     );
     isSyncingAccounts.complete();
-    Observable.fromIterable(this.sessions.values()).observeOn(Schedulers.io()).subscribe(
+    callEngine.dispose();
+    reconnectScheduler.dispose();
+    heartbeatScheduler.dispose();
+    bin.clear();
+    Observable.fromIterable(this.sessions.getSessions().values()).observeOn(Schedulers.io()).subscribe(
         Session::close
     );
     super.onDestroy();
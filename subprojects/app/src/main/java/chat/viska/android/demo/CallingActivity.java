@@ -27,133 +27,38 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.support.annotation.NonNull;
 import android.support.design.widget.FloatingActionButton;
-import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 import chat.viska.R;
-import chat.viska.android.Application;
+import chat.viska.android.Call;
+import chat.viska.android.CallEngine;
+import chat.viska.android.CallTimeline;
 import chat.viska.android.XmppService;
 import chat.viska.commons.DisposablesBin;
 import chat.viska.commons.reactive.MutableReactiveObject;
 import chat.viska.xmpp.Jid;
-import chat.viska.xmpp.plugins.webrtc.WebRtcPlugin;
-import io.reactivex.Flowable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.subjects.MaybeSubject;
-import java.util.EventObject;
 import java.util.Random;
-import java.util.UUID;
 import javax.annotation.Nonnull;
-import org.webrtc.DataChannel;
-import org.webrtc.IceCandidate;
-import org.webrtc.MediaConstraints;
-import org.webrtc.MediaStream;
-import org.webrtc.PeerConnection;
-import org.webrtc.PeerConnectionFactory;
-import org.webrtc.RtpReceiver;
-import org.webrtc.SessionDescription;
+import javax.annotation.Nullable;
 
+/**
+ * User interface of a {@link Call}. The {@link Call} itself is owned by the {@link CallEngine} of
+ * {@link XmppService}, this {@link Activity} only attaches to it.
+ */
 public class CallingActivity extends Activity {
 
-  private class PeerConnectionObserver implements PeerConnection.Observer {
-
-    @Override
-    public void onSignalingChange(@Nonnull final PeerConnection.SignalingState state) {}
-
-    @Override
-    public void onIceConnectionChange(final PeerConnection.IceConnectionState state) {
-      Log.d("WebRTC", "IceConnectionState is " + state);
-      if (state == PeerConnection.IceConnectionState.CONNECTED) {
-        CallingActivity.this.state.changeValue(State.STREAMING);
-        progressState.changeValue(ProgressState.IDLE);
-      } else if (state == PeerConnection.IceConnectionState.CLOSED) {
-        finish();
-      }
-    }
-
-    @Override
-    public void onIceConnectionReceivingChange(final boolean b) {}
-
-    @Override
-    public void onIceGatheringChange(@Nonnull final PeerConnection.IceGatheringState state) {
-      Log.d("WebRTC", "IceGatheringState is " + state);
-      if (state == PeerConnection.IceGatheringState.COMPLETE
-          && peerConnection.iceConnectionState() != PeerConnection.IceConnectionState.CONNECTED
-          && peerConnection.iceConnectionState() != PeerConnection.IceConnectionState.CLOSED
-          && progressState.getValue() != ProgressState.ENDED) {
-        progressState.changeValue(ProgressState.IDLE);
-        bin.add(xmpp.subscribe(
-            it -> it.getSessions().get(localJid).getPluginManager().getPlugin(WebRtcPlugin.class).sendSdp(
-                remoteJid,
-                id,
-                peerConnection.getLocalDescription(),
-                ACTION_CALL_OUTBOUND.equals(getIntent().getAction())
-            ),
-            CallingActivity.this::fail
-        ));
-      }
-    }
-
-    @Override
-    public void onIceCandidate(@Nonnull final IceCandidate candidate) {}
-
-    @Override
-    public void onIceCandidatesRemoved(final IceCandidate[] candidates) {}
-
-    @Override
-    public void onAddStream(final MediaStream stream) {}
-
-    @Override
-    public void onRemoveStream(final MediaStream stream) {}
-
-    @Override
-    public void onDataChannel(final DataChannel dataChannel) {}
-
-    @Override
-    public void onRenegotiationNeeded() {}
-
-    @Override
-    public void onAddTrack(final RtpReceiver rtpReceiver, final MediaStream[] mediaStreams) {}
-  }
-
-  private class SdpObserver implements org.webrtc.SdpObserver {
-
-    @Override
-    public void onCreateSuccess(@Nonnull final SessionDescription sdp) {
-      peerConnection.setLocalDescription(this, sdp);
-    }
-
-    @Override
-    public void onSetSuccess() {}
-
-    @Override
-    public void onCreateFailure(String s) {
-      fail(new Exception(s));
-    }
-
-    @Override
-    public void onSetFailure(String s) {
-      fail(new Exception(s));
-    }
-  }
-
-  private enum State {
-    INITIALIZED,
-    NEGOTIATING,
-    RINGING,
-    STREAMING
-  }
-
   private enum ProgressState {
     ENDED,
     IDLE,
     NEGOTIATING
   }
 
-  private static final MediaConstraints CONSTRAINTS = new MediaConstraints();
+  private static final String KEY_CALL_ID = "call-id";
 
   /**
    * {@link Intent} Action: Receive a VoIP call.
@@ -171,22 +76,11 @@ public class CallingActivity extends Activity {
   public static final String EXTRA_LOCAL_JID = "local-jid";
 
   /**
-   * {@link Intent} Extra:
-   * <a href="https://datatracker.ietf.org/doc/draft-ietf-rtcweb-jsep">JSEP</a> content in
-   * {@link String} sent from the remote end when receiving a call.
-   */
-  public static final String EXTRA_REMOTE_SDP = "chat.viska.intent.extra.REMOTE_SDP";
-
-  /**
-   * {@link Intent} Extra: Session ID in {@link String}. Required for an inbound call.
+   * {@link Intent} Extra: Session ID in {@link String}. Required for an inbound call, which must
+   * already be prepared by {@link CallEngine#prepareInboundCall}.
    */
   public static final String EXTRA_SESSION_ID = "chat.viska.intent.extra.SESSION_ID";
 
-  static {
-    CONSTRAINTS.mandatory.add(new MediaConstraints.KeyValuePair("audio", "true"));
-    CONSTRAINTS.mandatory.add(new MediaConstraints.KeyValuePair("video", "false"));
-  }
-
   private final ServiceConnection binding = new ServiceConnection() {
 
     @Override
@@ -205,14 +99,11 @@ public class CallingActivity extends Activity {
       ProgressState.IDLE
   );
   private final DisposablesBin bin = new DisposablesBin();
-  private final SdpObserver sdpObserver = new SdpObserver();
   private final MaybeSubject<XmppService> xmpp = MaybeSubject.create();
-  private final MutableReactiveObject<State> state = new MutableReactiveObject<>(State.INITIALIZED);
   private final int permissionRequestCode = new Random().nextInt(Integer.MAX_VALUE) + 1;
-  private String id;
   private ViewGroup.LayoutParams centerButtonLayoutParams;
   private ViewGroup.LayoutParams sideButtonLayoutParams;
-  private PeerConnection peerConnection;
+  private Call call;
   private Jid localJid = Jid.EMPTY;
   private Jid remoteJid = Jid.EMPTY;
   private AudioManager audioManager;
@@ -231,45 +122,55 @@ public class CallingActivity extends Activity {
     }
   }
 
-  private void initializeOutboundCall() {
-    id = UUID.randomUUID().toString();
-
-    final Application application = (Application) getApplication();
-    final PeerConnectionFactory factory = application.getWebRtcFactory();
-
-    final MediaStream mediaStream = factory.createLocalMediaStream(UUID.randomUUID().toString());
-    mediaStream.addTrack(factory.createAudioTrack(
-            UUID.randomUUID().toString(),
-            factory.createAudioSource(CONSTRAINTS)
+  /**
+   * Attaches to the {@link Call} this {@link Activity} is showing. An outbound call is started
+   * unless the {@link Activity} is being recreated.
+   */
+  private void attach(@Nonnull final XmppService xmpp, @Nullable final Bundle savedInstanceState) {
+    final CallEngine engine = xmpp.getCallEngine();
+    final String savedId = savedInstanceState == null
+        ? null
+        : savedInstanceState.getString(KEY_CALL_ID);
+    if (ACTION_CALL_INBOUND.equals(getIntent().getAction())) {
+      call = engine.getCall(getIntent().getStringExtra(EXTRA_SESSION_ID));
+    } else if (savedId != null) {
+      call = engine.getCall(savedId);
+    } else {
+      call = engine.startOutboundCall(xmpp.getSessions().get(localJid), remoteJid);
+    }
+    if (call == null) {
+      finish();
+      return;
+    }
+    call.getTimeline().record(CallTimeline.Event.ACTIVITY_LAUNCHED);
+    bin.add(call.getState().getStream().observeOn(AndroidSchedulers.mainThread()).subscribe(
+        this::onCallStateChanged
     ));
-
-    peerConnection = factory.createPeerConnection(
-        application.getBuiltInIceServers(),
-        CONSTRAINTS,
-        new PeerConnectionObserver()
-    );
-    peerConnection.addStream(mediaStream);
-    peerConnection.createOffer(sdpObserver, CONSTRAINTS);
   }
 
-  private void initializeInboundCall() {
-    id = getIntent().getStringExtra(EXTRA_SESSION_ID);
-
-    final Application application = (Application) getApplication();
-    final PeerConnectionFactory factory = application.getWebRtcFactory();
-
-    peerConnection = factory.createPeerConnection(
-        application.getBuiltInIceServers(),
-        CONSTRAINTS,
-        new PeerConnectionObserver()
-    );
-    peerConnection.setRemoteDescription(
-        sdpObserver,
-        new SessionDescription(
-            SessionDescription.Type.OFFER,
-            getIntent().getStringExtra(EXTRA_REMOTE_SDP)
-        )
-    );
+  private void onCallStateChanged(@Nonnull final Call.State state) {
+    switch (state) {
+      case RINGING:
+        showAnswerHangButtons();
+        progressState.changeValue(ProgressState.IDLE);
+        break;
+      case STREAMING:
+        showHangButton();
+        progressState.changeValue(ProgressState.IDLE);
+        break;
+      case ENDED:
+        progressState.changeValue(ProgressState.ENDED);
+        if (call.getError() != null) {
+          fail(call.getError());
+        } else {
+          finish();
+        }
+        break;
+      default:
+        showHangButton();
+        progressState.changeValue(ProgressState.NEGOTIATING);
+        break;
+    }
   }
 
   private void fail(@Nonnull final Throwable ex) {
@@ -278,13 +179,11 @@ public class CallingActivity extends Activity {
   }
 
   private void hang() {
-    xmpp.subscribe(it -> {
-      it.getSessions().get(localJid).getPluginManager().getPlugin(WebRtcPlugin.class).closeSession(
-          remoteJid,
-          id
-      );
+    if (call == null) {
       finish();
-    });
+    } else {
+      call.hang();
+    }
   }
 
   private void showHangButton() {
@@ -304,17 +203,9 @@ public class CallingActivity extends Activity {
   }
 
   public void onAnswerButtonClicked(final View view) {
-    progressState.changeValue(ProgressState.NEGOTIATING);
-    showHangButton();
-
-    final PeerConnectionFactory factory = ((Application) getApplication()).getWebRtcFactory();
-    final MediaStream stream = factory.createLocalMediaStream(UUID.randomUUID().toString());
-    stream.addTrack(factory.createAudioTrack(
-        UUID.randomUUID().toString(),
-        factory.createAudioSource(CONSTRAINTS)
-    ));
-    peerConnection.addStream(stream);
-    peerConnection.createAnswer(sdpObserver, new MediaConstraints());
+    if (call != null) {
+      call.answer();
+    }
   }
 
   public void onHangButtonClicked(final View view) {
@@ -369,49 +260,40 @@ public class CallingActivity extends Activity {
 
     checkPermissions();
 
-    xmpp.subscribe(it -> {
-      final Flowable<EventObject> events = it
-          .getSessions()
-          .get(localJid)
-          .getPluginManager()
-          .getPlugin(WebRtcPlugin.class)
-          .getEventStream();
-      bin.add(
-          events.ofType(WebRtcPlugin.SdpReceivedEvent.class).filter(
-              event -> event.getId().equals(id)
-          ).map(WebRtcPlugin.SdpReceivedEvent::getSdp).subscribe(
-              sdp -> peerConnection.setRemoteDescription(sdpObserver, sdp)
-          )
-      );
-      bin.add(
-          events.ofType(WebRtcPlugin.SessionClosingEvent.class).filter(
-              event -> event.getId().equals(id)
-          ).subscribe(event -> finish())
-      );
-    }, this::fail);
+    xmpp.subscribe(it -> attach(it, savedInstanceState), this::fail);
 
     if (ACTION_CALL_OUTBOUND.equals(getIntent().getAction())) {
       ((TextView) findViewById(R.id.calling_label_remote)).setText(R.string.title_outbound_call);
       showHangButton();
       progressState.changeValue(ProgressState.NEGOTIATING);
-      initializeOutboundCall();
     } else if (ACTION_CALL_INBOUND.equals(getIntent().getAction())) {
       showAnswerHangButtons();
-      initializeInboundCall();
     }
     bindService(new Intent(this, XmppService.class), binding, BIND_AUTO_CREATE);
   }
 
+  @Override
+  protected void onSaveInstanceState(final Bundle outState) {
+    super.onSaveInstanceState(outState);
+    if (call != null) {
+      outState.putString(KEY_CALL_ID, call.getId());
+    }
+  }
+
   @Override
   protected void onDestroy() {
-    peerConnection.close();
-    peerConnection.dispose();
+    if (isFinishing() && call != null) {
+      call.hang();
+    }
     if (xmpp.hasValue()) {
       unbindService(binding);
     }
     bin.clear();
-    audioManager.setSpeakerphoneOn(true); // Restore what was changed previously in onCreate()
-    audioManager.setMode(AudioManager.MODE_NORMAL);
+    // Keep the audio routing while being recreated, e.g. on rotation, since the call goes on
+    if (isFinishing() && (call == null || call.getState().getValue() == Call.State.ENDED)) {
+      audioManager.setSpeakerphoneOn(true); // Restore what was changed previously in onCreate()
+      audioManager.setMode(AudioManager.MODE_NORMAL);
+    }
     super.onDestroy();
   }
 
@@ -26,10 +26,12 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.support.design.widget.Snackbar;
+import android.view.Menu;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Toast;
 import chat.viska.R;
+import chat.viska.android.CallEngine;
 import chat.viska.android.XmppService;
 import chat.viska.commons.DisposablesBin;
 import chat.viska.xmpp.Jid;
@@ -51,6 +53,7 @@ public class MainActivity extends ListActivity {
   private Snackbar snackbar;
   private Disposable callSubscription;
   private Jid localJid = Jid.EMPTY;
+  private CallEngine callEngine;
 
   private final ServiceConnection binding = new ServiceConnection() {
 
@@ -58,6 +61,8 @@ public class MainActivity extends ListActivity {
     public void onServiceConnected(@Nonnull final ComponentName componentName,
                                    @Nonnull final IBinder binder) {
       final XmppService xmpp = ((XmppService.Binder) binder).getService();
+      callEngine = xmpp.getCallEngine();
+      callEngine.prewarm();
       bin.add(
           xmpp.isSyncingAccounts().getStream().filter(it -> !it).firstOrError().subscribe(it -> {
             final Session session = xmpp.getSessions().get(localJid);
@@ -75,6 +80,9 @@ public class MainActivity extends ListActivity {
   private final AdapterView.OnItemClickListener onItemClickListener = (
       adapterView, view, position, id
   ) -> {
+    if (callEngine != null) {
+      callEngine.prewarm();
+    }
     bin.add(session.subscribe(session -> {
       snackbar.show();
       final BasePlugin plugin = session.getPluginManager().getPlugin(BasePlugin.class);
@@ -177,6 +185,12 @@ public class MainActivity extends ListActivity {
     getListView().setOnItemClickListener(onItemClickListener);
   }
 
+  @Override
+  public boolean onCreateOptionsMenu(final Menu menu) {
+    menu.add(R.string.title_settings).setIntent(new Intent(this, SettingsActivity.class));
+    return true;
+  }
+
   @Override
   protected void onDestroy() {
     if (session.hasValue() || !session.hasComplete()) {
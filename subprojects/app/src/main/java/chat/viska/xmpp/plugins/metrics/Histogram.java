@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.xmpp.plugins.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnull;
+
+/**
+ * Lock-free histogram of non-negative values with buckets of powers of 2. Bucket {@code 0} holds
+ * {@code 0} and bucket {@code n} holds values in {@code [2^(n-1), 2^n)}, values beyond the last
+ * bucket are put in it.
+ */
+public final class Histogram {
+
+  public static final int BUCKETS = 24;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final StripedCounter count = new StripedCounter();
+  private final StripedCounter sum = new StripedCounter();
+
+  /**
+   * Gets the bucket of a value.
+   */
+  public static int getBucket(final long value) {
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+  }
+
+  /**
+   * Gets the largest value a bucket holds, or {@link Long#MAX_VALUE} for the last bucket.
+   */
+  public static long getUpperBound(final int bucket) {
+    return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+  }
+
+  /**
+   * Records a value. Negative values are recorded as {@code 0}.
+   */
+  public void record(final long value) {
+    buckets.incrementAndGet(getBucket(value));
+    count.increment();
+    sum.add(Math.max(0, value));
+  }
+
+  /**
+   * Adds the values of a previously saved histogram.
+   * @param buckets Number of values in each bucket as returned by {@link #getBuckets()}.
+   * @param sum Sum of the values.
+   */
+  public void restore(@Nonnull final long[] buckets, final long sum) {
+    for (int it = 0; it < Math.min(BUCKETS, buckets.length); ++it) {
+      this.buckets.addAndGet(it, buckets[it]);
+      this.count.add(buckets[it]);
+    }
+    this.sum.add(sum);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * Gets the mean, or {@code 0} if nothing is recorded.
+   */
+  public double getMean() {
+    final long total = getCount();
+    return total == 0 ? 0 : (double) getSum() / total;
+  }
+
+  /**
+   * Gets the upper bound of the bucket containing a quantile, or {@code 0} if nothing is recorded.
+   * @param quantile Between {@code 0} and {@code 1}.
+   */
+  public long getQuantile(final double quantile) {
+    final long[] snapshot = getBuckets();
+    long total = 0;
+    for (long it : snapshot) {
+      total += it;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int it = 0; it < BUCKETS; ++it) {
+      seen += snapshot[it];
+      if (seen >= rank && snapshot[it] > 0) {
+        return getUpperBound(it);
+      }
+    }
+    return getUpperBound(BUCKETS - 1);
+  }
+
+  /**
+   * Gets a copy of the number of values in each bucket.
+   */
+  public long[] getBuckets() {
+    final long[] result = new long[BUCKETS];
+    for (int it = 0; it < BUCKETS; ++it) {
+      result[it] = buckets.get(it);
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.ROOT,
+        "count=%d mean=%.1f p50=%d p90=%d p99=%d",
+        getCount(),
+        getMean(),
+        getQuantile(0.5),
+        getQuantile(0.9),
+        getQuantile(0.99)
+    );
+  }
+}
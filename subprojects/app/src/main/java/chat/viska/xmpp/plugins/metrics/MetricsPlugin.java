@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.xmpp.plugins.metrics;
+
+import chat.viska.xmpp.Plugin;
+import chat.viska.xmpp.Session;
+import chat.viska.xmpp.Stanza;
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * {@link Plugin} collecting traffic metrics of a {@link Session}: inbound stanzas by kind, IQs
+ * sent by other {@link Plugin}s through {@link #timeIq(String, Completable)} with their response
+ * latencies, and the time spent in each {@link Session.State}. Updates are cheap enough for the
+ * stanza path since all counters are {@link StripedCounter}s.
+ */
+public class MetricsPlugin implements Plugin {
+
+  /**
+   * Kind of a stanza.
+   */
+  public enum Kind {
+    IQ,
+    MESSAGE,
+    PRESENCE,
+    OTHER
+  }
+
+  private final Map<Kind, StripedCounter> inboundStanzas = new EnumMap<>(Kind.class);
+  private final StripedCounter outboundIqs = new StripedCounter();
+  private final Map<String, Histogram> iqLatencies = new ConcurrentHashMap<>();
+  private final Map<Session.State, StripedCounter> stateDurations = new EnumMap<>(
+      Session.State.class
+  );
+  private Session.PluginContext context;
+  private Session.State state;
+  private long stateSince;
+
+  @Nonnull
+  private static Kind getKind(@Nonnull final Stanza stanza) {
+    final String name = stanza.getXml().getDocumentElement().getLocalName();
+    if ("iq".equals(name)) {
+      return Kind.IQ;
+    } else if ("message".equals(name)) {
+      return Kind.MESSAGE;
+    } else if ("presence".equals(name)) {
+      return Kind.PRESENCE;
+    } else {
+      return Kind.OTHER;
+    }
+  }
+
+  public MetricsPlugin() {
+    for (Kind it : Kind.values()) {
+      inboundStanzas.put(it, new StripedCounter());
+    }
+    for (Session.State it : Session.State.values()) {
+      stateDurations.put(it, new StripedCounter());
+    }
+  }
+
+  private synchronized void onStateChanged(@Nonnull final Session.State state) {
+    final long now = System.nanoTime();
+    if (this.state != null) {
+      stateDurations.get(this.state).add(now - stateSince);
+    }
+    this.state = state;
+    this.stateSince = now;
+  }
+
+  @Nonnull
+  private Histogram getIqLatency(@Nonnull final String name) {
+    final Histogram created = new Histogram();
+    final Histogram existing = iqLatencies.putIfAbsent(name, created);
+    return existing == null ? created : existing;
+  }
+
+  /**
+   * Counts an outbound IQ and records how long it takes until its response in milliseconds.
+   * Failed IQs are only counted.
+   * @param name Name of the histogram, usually the kind of the request.
+   * @param iq Sends the IQ upon subscription and completes upon the response.
+   */
+  @Nonnull
+  public Completable timeIq(@Nonnull final String name, @Nonnull final Completable iq) {
+    return Completable.defer(() -> {
+      outboundIqs.increment();
+      final long start = System.nanoTime();
+      return iq.doOnComplete(() -> getIqLatency(name).record(
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+      ));
+    });
+  }
+
+  /**
+   * Same as {@link #timeIq(String, Completable)} but for an IQ whose response is needed.
+   */
+  @Nonnull
+  public <T> Single<T> timeIq(@Nonnull final String name, @Nonnull final Single<T> iq) {
+    return Single.defer(() -> {
+      outboundIqs.increment();
+      final long start = System.nanoTime();
+      return iq.doOnSuccess(it -> getIqLatency(name).record(
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+      ));
+    });
+  }
+
+  public long getInboundStanzaCount(@Nonnull final Kind kind) {
+    return inboundStanzas.get(kind).sum();
+  }
+
+  /**
+   * Gets the number of IQs sent through {@link #timeIq(String, Completable)}.
+   */
+  public long getOutboundIqCount() {
+    return outboundIqs.sum();
+  }
+
+  /**
+   * Gets the response latency histograms in milliseconds of the IQs sent through
+   * {@link #timeIq(String, Completable)}, keyed by their names.
+   */
+  @Nonnull
+  public Map<String, Histogram> getIqLatencies() {
+    return Collections.unmodifiableMap(iqLatencies);
+  }
+
+  /**
+   * Gets how long in milliseconds the {@link Session} has spent in a {@link Session.State},
+   * including the ongoing one.
+   */
+  public synchronized long getStateDuration(@Nonnull final Session.State state) {
+    long result = stateDurations.get(state).sum();
+    if (state == this.state) {
+      result += System.nanoTime() - stateSince;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(result);
+  }
+
+  /**
+   * Prints all metrics in a human-readable form.
+   */
+  public void dump(@Nonnull final PrintWriter writer, @Nullable final String prefix) {
+    final String indent = prefix == null ? "" : prefix;
+    writer.print(indent);
+    writer.print("Inbound stanzas:");
+    for (Kind it : Kind.values()) {
+      writer.print(' ');
+      writer.print(it.name().toLowerCase(Locale.ROOT));
+      writer.print('=');
+      writer.print(getInboundStanzaCount(it));
+    }
+    writer.println();
+    writer.print(indent);
+    writer.print("Outbound IQs: ");
+    writer.println(getOutboundIqCount());
+    for (Map.Entry<String, Histogram> it : iqLatencies.entrySet()) {
+      writer.print(indent);
+      writer.print("IQ latency of ");
+      writer.print(it.getKey());
+      writer.print(" (ms): ");
+      writer.println(it.getValue());
+    }
+    writer.print(indent);
+    writer.print("Time in states (ms):");
+    for (Session.State it : Session.State.values()) {
+      writer.print(' ');
+      writer.print(it.name().toLowerCase(Locale.ROOT));
+      writer.print('=');
+      writer.print(getStateDuration(it));
+    }
+    writer.println();
+  }
+
+  @Nonnull
+  @Override
+  public Set<Class<? extends Plugin>> getDependencies() {
+    return Collections.emptySet();
+  }
+
+  @Nonnull
+  @Override
+  public Set<String> getFeatures() {
+    return Collections.emptySet();
+  }
+
+  @Nonnull
+  @Override
+  public Set<Map.Entry<String, String>> getSupportedIqs() {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public void onApplying(@Nonnull final Session.PluginContext context) {
+    this.context = context;
+    context.getInboundStanzaStream().subscribe(it -> inboundStanzas.get(getKind(it)).increment());
+    context.getSession().getState().getStream().subscribe(this::onStateChanged);
+  }
+
+  @Nonnull
+  @Override
+  public Session getSession() {
+    return context.getSession();
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.xmpp.plugins.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spreading its updates across several cells indexed by thread, so that threads updating
+ * it at the same time rarely contend. Serves the same purpose as
+ * {@code java.util.concurrent.atomic.LongAdder}, which is only available since Android 7.0.
+ */
+public final class StripedCounter {
+
+  private static final int STRIPES = 8;
+
+  /**
+   * Number of {@code long}s between 2 cells, so that each cell sits on its own cache line.
+   */
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  private static int getCell() {
+    return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+  }
+
+  public void add(final long delta) {
+    cells.addAndGet(getCell(), delta);
+  }
+
+  public void increment() {
+    add(1);
+  }
+
+  /**
+   * Gets the total. Not atomic with respect to concurrent updates.
+   */
+  public long sum() {
+    long result = 0;
+    for (int it = 0; it < STRIPES; ++it) {
+      result += cells.get(it * PADDING);
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf(sum());
+  }
+}
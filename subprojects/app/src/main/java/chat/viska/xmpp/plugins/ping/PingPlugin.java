@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.xmpp.plugins.ping;
+
+import chat.viska.xmpp.Jid;
+import chat.viska.xmpp.Plugin;
+import chat.viska.xmpp.Session;
+import chat.viska.xmpp.Stanza;
+import chat.viska.xmpp.StanzaErrorException;
+import chat.viska.xmpp.XmlWrapperStanza;
+import chat.viska.xmpp.plugins.metrics.MetricsPlugin;
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import org.w3c.dom.Document;
+
+/**
+ * {@link Plugin} for pinging the server using
+ * <a href="https://xmpp.org/extensions/xep-0199.html">XEP-0199: XMPP Ping</a>. Sample stanza:
+ *
+ * <pre>{@code
+ * <iq type="get" id="..." to="westeros.com">
+ *   <ping xmlns="urn:xmpp:ping"/>
+ * </iq>
+ * }</pre>
+ */
+public class PingPlugin implements Plugin {
+
+  public static final String XMLNS = "urn:xmpp:ping";
+
+  private volatile long roundTripTime = -1;
+  private Session.PluginContext context;
+
+  /**
+   * Pings the server of the {@link Session}. Any response, even an error from a server not
+   * supporting XEP-0199, proves the connection is alive.
+   * @return Round-trip time in milliseconds.
+   */
+  @Nonnull
+  public Single<Long> ping() {
+    return Single.defer(() -> {
+      final Document iq = Stanza.getIqTemplate(
+          Stanza.IqType.GET,
+          UUID.randomUUID().toString(),
+          getSession().getNegotiatedJid(),
+          new Jid(getSession().getNegotiatedJid().getDomainPart())
+      );
+      iq.getDocumentElement().appendChild(iq.createElementNS(XMLNS, "ping"));
+      final long start = System.nanoTime();
+      final Completable response = this.context
+          .sendIq(new XmlWrapperStanza(iq))
+          .getResponse()
+          .toSingle()
+          .toCompletable()
+          .onErrorResumeNext(ex -> ex instanceof StanzaErrorException
+              ? Completable.complete()
+              : Completable.error(ex));
+      return getSession().getPluginManager().getPlugin(MetricsPlugin.class).timeIq(
+          "ping",
+          response
+      ).toSingle(
+          () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+      ).doOnSuccess(it -> this.roundTripTime = it);
+    });
+  }
+
+  /**
+   * Gets the round-trip time in milliseconds of the last successful {@link #ping()}, or
+   * {@code -1} if there has been none.
+   */
+  public long getRoundTripTime() {
+    return roundTripTime;
+  }
+
+  @Nonnull
+  @Override
+  public Set<Class<? extends Plugin>> getDependencies() {
+    return Collections.singleton(MetricsPlugin.class);
+  }
+
+  @Nonnull
+  @Override
+  public Set<String> getFeatures() {
+    return Collections.emptySet();
+  }
+
+  @Nonnull
+  @Override
+  public Set<Map.Entry<String, String>> getSupportedIqs() {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public void onApplying(@Nonnull final Session.PluginContext context) {
+    this.context = context;
+  }
+
+  @Nonnull
+  @Override
+  public Session getSession() {
+    return context.getSession();
+  }
+}
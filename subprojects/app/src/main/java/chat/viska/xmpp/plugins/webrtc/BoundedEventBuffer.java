@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.xmpp.plugins.webrtc;
+
+import io.reactivex.FlowableOperator;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Buffers items for each subscriber that is slower than the upstream. When a buffer is full, the
+ * oldest buffered item of the droppable type is discarded to make room. If no such item is
+ * buffered, a new droppable item is discarded instead. Other items are never discarded and may
+ * grow a buffer beyond its capacity.
+ */
+final class BoundedEventBuffer<T> implements FlowableOperator<T, T> {
+
+  private static final class BufferSubscriber<T> implements Subscriber<T>, Subscription {
+
+    private final Subscriber<? super T> downstream;
+    private final int capacity;
+    private final Class<?> droppableType;
+    private final EventStatistics statistics;
+    @GuardedBy("itself")
+    private final ArrayDeque<T> queue = new ArrayDeque<>();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private Subscription upstream;
+    private Throwable error;
+    private volatile boolean done = false;
+    private volatile boolean cancelled = false;
+
+    private BufferSubscriber(@Nonnull final Subscriber<? super T> downstream,
+                             final int capacity,
+                             @Nonnull final Class<?> droppableType,
+                             @Nonnull final EventStatistics statistics) {
+      this.downstream = downstream;
+      this.capacity = capacity;
+      this.droppableType = droppableType;
+      this.statistics = statistics;
+    }
+
+    /**
+     * Removes the oldest droppable item.
+     * @return {@code false} if none is buffered.
+     */
+    @GuardedBy("queue")
+    private boolean evict() {
+      final Iterator<T> iterator = queue.iterator();
+      while (iterator.hasNext()) {
+        if (droppableType.isInstance(iterator.next())) {
+          iterator.remove();
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      while (true) {
+        final long demand = requested.get();
+        long emitted = 0;
+        while (emitted != demand) {
+          if (cancelled) {
+            clear();
+            return;
+          }
+          final boolean terminated = done;
+          final T item;
+          synchronized (queue) {
+            item = queue.poll();
+          }
+          if (item == null) {
+            if (terminated) {
+              terminate();
+              return;
+            }
+            break;
+          }
+          downstream.onNext(item);
+          statistics.onDelivered();
+          ++emitted;
+        }
+        if (emitted == demand) {
+          if (cancelled) {
+            clear();
+            return;
+          }
+          final boolean empty;
+          synchronized (queue) {
+            empty = queue.isEmpty();
+          }
+          if (done && empty) {
+            terminate();
+            return;
+          }
+        }
+        if (emitted != 0 && demand != Long.MAX_VALUE) {
+          requested.addAndGet(-emitted);
+        }
+        missed = wip.addAndGet(-missed);
+        if (missed == 0) {
+          return;
+        }
+      }
+    }
+
+    private void terminate() {
+      if (error == null) {
+        downstream.onComplete();
+      } else {
+        downstream.onError(error);
+      }
+    }
+
+    private void clear() {
+      synchronized (queue) {
+        queue.clear();
+      }
+    }
+
+    @Override
+    public void onSubscribe(@Nonnull final Subscription subscription) {
+      upstream = subscription;
+      downstream.onSubscribe(this);
+      subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(@Nonnull final T item) {
+      synchronized (queue) {
+        if (queue.size() >= capacity) {
+          if (evict()) {
+            statistics.onDropped();
+          } else if (droppableType.isInstance(item)) {
+            statistics.onDropped();
+            return;
+          }
+        }
+        queue.offer(item);
+      }
+      statistics.onEnqueued();
+      drain();
+    }
+
+    @Override
+    public void onError(@Nonnull final Throwable cause) {
+      error = cause;
+      done = true;
+      drain();
+    }
+
+    @Override
+    public void onComplete() {
+      done = true;
+      drain();
+    }
+
+    @Override
+    public void request(final long amount) {
+      if (amount <= 0) {
+        return;
+      }
+      while (true) {
+        final long current = requested.get();
+        if (current == Long.MAX_VALUE) {
+          break;
+        }
+        final long sum = current + amount;
+        if (requested.compareAndSet(current, sum < 0 ? Long.MAX_VALUE : sum)) {
+          break;
+        }
+      }
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      upstream.cancel();
+      if (wip.getAndIncrement() == 0) {
+        clear();
+      }
+    }
+  }
+
+  private final int capacity;
+  private final Class<?> droppableType;
+  private final EventStatistics statistics;
+
+  /**
+   * Default constructor.
+   * @param capacity Number of items buffered for each subscriber before items are dropped.
+   * @param droppableType Type of items that may be dropped.
+   * @param statistics Where the counters are recorded.
+   */
+  BoundedEventBuffer(final int capacity,
+                     @Nonnull final Class<?> droppableType,
+                     @Nonnull final EventStatistics statistics) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.capacity = capacity;
+    this.droppableType = droppableType;
+    this.statistics = statistics;
+  }
+
+  @Nonnull
+  @Override
+  public Subscriber<? super T> apply(@Nonnull final Subscriber<? super T> subscriber) {
+    return new BufferSubscriber<>(subscriber, capacity, droppableType, statistics);
+  }
+}
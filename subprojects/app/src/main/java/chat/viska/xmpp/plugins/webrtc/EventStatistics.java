@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.xmpp.plugins.webrtc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of events flowing through the event streams of a {@link WebRtcPlugin}. Every
+ * subscriber has its own buffer, so an event delivered to 2 subscribers is counted twice.
+ */
+public final class EventStatistics {
+
+  private final AtomicLong enqueued = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  void onEnqueued() {
+    enqueued.incrementAndGet();
+  }
+
+  void onDelivered() {
+    delivered.incrementAndGet();
+  }
+
+  void onDropped() {
+    dropped.incrementAndGet();
+  }
+
+  /**
+   * Gets the number of events accepted into a subscriber buffer.
+   */
+  public long getEnqueued() {
+    return enqueued.get();
+  }
+
+  /**
+   * Gets the number of events handed to a subscriber.
+   */
+  public long getDelivered() {
+    return delivered.get();
+  }
+
+  /**
+   * Gets the number of events discarded because a subscriber buffer was full.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  @Override
+  public String toString() {
+    return "enqueued=" + getEnqueued()
+        + ", delivered=" + getDelivered()
+        + ", dropped=" + getDropped();
+  }
+}
@@ -16,26 +16,34 @@
 
 package chat.viska.xmpp.plugins.webrtc;
 
-import chat.viska.commons.DomUtils;
 import chat.viska.xmpp.Jid;
 import chat.viska.xmpp.Plugin;
 import chat.viska.xmpp.Session;
 import chat.viska.xmpp.Stanza;
 import chat.viska.xmpp.StanzaErrorException;
 import chat.viska.xmpp.XmlWrapperStanza;
+import chat.viska.xmpp.plugins.BasePlugin;
+import chat.viska.xmpp.plugins.metrics.MetricsPlugin;
 import io.reactivex.Completable;
 import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import io.reactivex.processors.FlowableProcessor;
 import io.reactivex.processors.PublishProcessor;
 import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EventObject;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.apache.commons.lang3.StringUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -66,21 +74,48 @@ import org.webrtc.SessionDescription;
  *   <webrtc xmlns="https://schemas.viska.chat/demo/webrtc" id="..." action="close"/>
  * </iq>
  * }</pre>
+ *
+ * <p>Peers advertising {@link #FEATURE_COMPACT_SDP} also accept an SDP as one text node:</p>
+ *
+ * <pre>{@code
+ * <sdp type="offer" encoding="text">v=0
+ * o=...
+ * </sdp>
+ * }</pre>
  */
 public class WebRtcPlugin implements Plugin {
 
-  public class IceCandidateReceivedEvent extends EventObject {
+  /**
+   * Event concerning a WebRTC session.
+   */
+  public abstract class SessionEvent extends EventObject {
 
-    private final IceCandidate candidate;
     private final String id;
+
+    protected SessionEvent(@Nonnull final String id) {
+      super(WebRtcPlugin.this);
+      this.id = id;
+    }
+
+    /**
+     * Gets the ID of the WebRTC session.
+     */
+    @Nonnull
+    public String getId() {
+      return id;
+    }
+  }
+
+  public class IceCandidateReceivedEvent extends SessionEvent {
+
+    private final IceCandidate candidate;
     private final boolean creating;
 
     public IceCandidateReceivedEvent(@Nonnull final IceCandidate candidate,
                                      @Nonnull final String id,
                                      final boolean creating) {
-      super(WebRtcPlugin.this);
+      super(id);
       this.candidate = candidate;
-      this.id = id;
       this.creating = creating;
     }
 
@@ -88,17 +123,11 @@ public class WebRtcPlugin implements Plugin {
     public IceCandidate getCandidate() {
       return candidate;
     }
-
-    @Nonnull
-    public String getId() {
-      return id;
-    }
   }
 
-  public class SdpReceivedEvent extends EventObject {
+  public class SdpReceivedEvent extends SessionEvent {
 
     private final SessionDescription sdp;
-    private final String id;
     private final boolean creating;
     private final Jid remoteJid;
 
@@ -106,9 +135,8 @@ public class WebRtcPlugin implements Plugin {
                             @Nonnull final String id,
                             @Nonnull final Jid remoteJid,
                             final boolean creating) {
-      super(WebRtcPlugin.this);
+      super(id);
       this.sdp = sdp;
-      this.id = id;
       this.creating = creating;
       this.remoteJid = remoteJid;
     }
@@ -118,11 +146,6 @@ public class WebRtcPlugin implements Plugin {
       return sdp;
     }
 
-    @Nonnull
-    public String getId() {
-      return id;
-    }
-
     public boolean isCreating() {
       return creating;
     }
@@ -133,75 +156,176 @@ public class WebRtcPlugin implements Plugin {
     }
   }
 
-  public class SessionClosingEvent extends EventObject {
-
-    private final String id;
+  public class SessionClosingEvent extends SessionEvent {
 
-    public SessionClosingEvent(String id) {
-      super(WebRtcPlugin.this);
-      this.id = id;
-    }
-
-    @Nonnull
-    public String getId() {
-      return id;
+    public SessionClosingEvent(@Nonnull final String id) {
+      super(id);
     }
   }
 
   // Android still does not support \R from Perl 5
   private static final String REGEX_LINE_BREAK = "\\u000D\\u000A|[\\u000A\\u000B\\u000C\\u000D\\u0085\\u2028\\u2029]";
+  private static final String ENCODING_TEXT = "text";
   public static final String XMLNS = "https://schemas.viska.chat/demo/webrtc";
 
+  /**
+   * Feature indicating an {@code <sdp/>} may contain the whole SDP as one text node instead of
+   * {@code <line/>}s.
+   */
+  public static final String FEATURE_COMPACT_SDP = XMLNS + "#compact-sdp";
+
+  /**
+   * Default capacity of the buffer of each event subscriber.
+   */
+  public static final int DEFAULT_EVENT_BUFFER_CAPACITY = 256;
+
+  /**
+   * Time window in milliseconds within which trickled {@link IceCandidate}s are grouped into one
+   * IQ.
+   */
+  public static final long TRICKLE_WINDOW = 100;
+
+  /**
+   * Maximum number of trickled {@link IceCandidate}s sent in one IQ.
+   */
+  public static final int TRICKLE_BATCH_SIZE = 8;
+
+  /**
+   * Number of closed session IDs remembered so that a channel requested after its session is
+   * closed completes right away.
+   */
+  public static final int MAX_CLOSED_SESSIONS = 64;
+
   private final FlowableProcessor<EventObject> eventStream;
+  private final Map<String, FlowableProcessor<SessionEvent>> channels = new ConcurrentHashMap<>();
+  private final Set<String> closedSessions = Collections.newSetFromMap(Collections.synchronizedMap(
+      new LinkedHashMap<String, Boolean>() {
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_CLOSED_SESSIONS;
+        }
+      }
+  ));
+  private final EventStatistics eventStatistics = new EventStatistics();
+  private volatile int eventBufferCapacity = DEFAULT_EVENT_BUFFER_CAPACITY;
+  private final ConcurrentMap<Jid, Boolean> compactSdpPeers = new ConcurrentHashMap<>();
+  private final Set<Jid> probingPeers = Collections.newSetFromMap(new ConcurrentHashMap<>());
   private Session.PluginContext context;
 
-  private void consumeIq(@Nonnull final Stanza iq) {
-    final Element webrtcElement = (Element) iq.getXml().getDocumentElement().getFirstChild();
-    final String id = webrtcElement.getAttribute("id");
+  @Nonnull
+  private static StanzaErrorException createBadRequest(@Nonnull final Stanza iq,
+                                                       @Nonnull final String text) {
+    return new StanzaErrorException(
+        iq,
+        StanzaErrorException.Condition.BAD_REQUEST,
+        StanzaErrorException.Type.MODIFY,
+        text,
+        null,
+        null,
+        null
+    );
+  }
+
+  /**
+   * Finds the next sibling {@link Element} with the specified local name, starting from
+   * {@code node} itself.
+   */
+  @Nullable
+  private static Element findElement(@Nullable Node node, @Nonnull final String name) {
+    while (node != null) {
+      if (node.getNodeType() == Node.ELEMENT_NODE && name.equals(node.getLocalName())) {
+        return (Element) node;
+      }
+      node = node.getNextSibling();
+    }
+    return null;
+  }
+
+  /**
+   * Dispatches an event to the global event stream and to the channel of its session. The
+   * channel is completed and removed when the session is closing, and the session is remembered
+   * as closed in case its channel is only requested afterwards.
+   */
+  private void emit(@Nonnull final SessionEvent event) {
+    this.eventStream.onNext(event);
+    if (event instanceof SessionClosingEvent) {
+      closedSessions.add(event.getId());
+      final FlowableProcessor<SessionEvent> channel = channels.remove(event.getId());
+      if (channel != null) {
+        channel.onNext(event);
+        channel.onComplete();
+      }
+    } else {
+      final FlowableProcessor<SessionEvent> channel = channels.get(event.getId());
+      if (channel != null) {
+        channel.onNext(event);
+      }
+    }
+  }
+
+  /**
+   * Decodes the {@code <webrtc/>} payload in a single pass over the sibling links of the DOM,
+   * emitting the events as soon as each child element is decoded. Package-private for
+   * {@code WebRtcPluginBenchmark}.
+   */
+  void consumeIq(@Nonnull final Stanza iq) {
     try {
+      final Element webrtcElement = findElement(
+          iq.getXml().getDocumentElement().getFirstChild(),
+          "webrtc"
+      );
+      if (webrtcElement == null) {
+        throw createBadRequest(iq, "No webrtc element found.");
+      }
+      final String id = webrtcElement.getAttribute("id");
       if (StringUtils.isBlank(id)) {
-        throw new StanzaErrorException(
-            iq,
-            StanzaErrorException.Condition.BAD_REQUEST,
-            StanzaErrorException.Type.MODIFY,
-            "No session id found.",
-            null,
-            null,
-            null
-        );
+        throw createBadRequest(iq, "No session id found.");
       }
       final String actionAttribute = webrtcElement.getAttribute("action");
       if ("close".equals(actionAttribute)) {
-        this.eventStream.onNext(new SessionClosingEvent(id));
-      } else {
-        final boolean creating = "create".equals(actionAttribute);
-        for (Node node : DomUtils.convertToList(webrtcElement.getChildNodes())) {
-          if ("sdp".equals(node.getLocalName())) {
-            final SessionDescription.Type type;
-            try {
-              type = SessionDescription.Type.fromCanonicalForm(
-                  ((Element) node).getAttribute("type")
-              );
-            } catch (Exception ex) {
-              throw new StanzaErrorException(
-                  iq,
-                  StanzaErrorException.Condition.BAD_REQUEST,
-                  StanzaErrorException.Type.MODIFY,
-                  "SDP type unknown.",
-                  null,
-                  null,
-                  null
-              );
-            }
-            this.eventStream.onNext(new SdpReceivedEvent(
-                new SessionDescription(type, convertSdpElementsToString(node)),
-                id,
-                iq.getSender(),
-                creating
-            ));
-          } else if ("ice-candidate".equals(node.getLocalName())) {
-            consumeIceCandidate((Element) node, id, creating);
+        emit(new SessionClosingEvent(id));
+        return;
+      }
+      final boolean creating = "create".equals(actionAttribute);
+      for (Node node = webrtcElement.getFirstChild(); node != null; node = node.getNextSibling()) {
+        if (node.getNodeType() != Node.ELEMENT_NODE) {
+          continue;
+        }
+        final Element element = (Element) node;
+        if ("sdp".equals(element.getLocalName())) {
+          if (ENCODING_TEXT.equals(element.getAttribute("encoding"))) {
+            compactSdpPeers.put(iq.getSender(), true);
+          }
+          final SessionDescription.Type type;
+          try {
+            type = SessionDescription.Type.fromCanonicalForm(element.getAttribute("type"));
+          } catch (Exception ex) {
+            throw createBadRequest(iq, "SDP type unknown.");
           }
+          emit(new SdpReceivedEvent(
+              new SessionDescription(type, decodeSdp(element)),
+              id,
+              iq.getSender(),
+              creating
+          ));
+        } else if ("ice-candidate".equals(element.getLocalName())) {
+          final int index;
+          try {
+            index = Integer.parseInt(element.getAttribute("sdpMLineIndex"));
+          } catch (NumberFormatException ex) {
+            throw createBadRequest(iq, "Invalid sdpMLineIndex.");
+          }
+          final Element sdpElement = findElement(element.getFirstChild(), "sdp");
+          emit(new IceCandidateReceivedEvent(
+              new IceCandidate(
+                  element.getAttribute("sdpMid"),
+                  index,
+                  sdpElement == null ? "" : decodeSdp(sdpElement).trim()
+              ),
+              id,
+              creating
+          ));
         }
       }
     } catch (StanzaErrorException ex) {
@@ -209,37 +333,30 @@ public class WebRtcPlugin implements Plugin {
     }
   }
 
-  private void consumeIceCandidate(@Nonnull final Element iceCandidateElement,
-                                   @Nonnull final String id,
-                                   final boolean creating) {
-    final Node sdpElement = Observable.fromIterable(
-        DomUtils.convertToList(iceCandidateElement.getChildNodes())
-    ).filter(it -> "sdp".equals(it.getLocalName())).firstElement().blockingGet();
-    final String sdp = sdpElement == null ? "" : convertSdpElementsToString(sdpElement);
-    this.eventStream.onNext(new IceCandidateReceivedEvent(
-        new IceCandidate(
-            iceCandidateElement.getAttribute("sdpMid"),
-            Integer.getInteger(iceCandidateElement.getAttribute("sdpMLineIndex")),
-            sdp
-        ),
-        id,
-        creating
-    ));
-  }
-
+  /**
+   * Joins the text of the {@code <line/>}s in an {@code <sdp/>} into one SDP. Blank lines are
+   * skipped.
+   */
   @Nonnull
-  private String convertSdpElementsToString(@Nonnull final Node sdpElement) {
+  private static String decodeSdp(@Nonnull final Element sdpElement) {
     final StringBuilder sdp = new StringBuilder();
-    Observable.fromIterable(
-        DomUtils.convertToList(sdpElement.getChildNodes())
-    ).filter(
-        it -> "line".equals(it.getLocalName())
-    ).filter(
-        it -> StringUtils.isNotBlank(it.getTextContent())
-    ).map(Node::getTextContent).subscribe(it -> {
-      sdp.append(it);
-      sdp.append(System.lineSeparator());
-    });
+    if (ENCODING_TEXT.equals(sdpElement.getAttribute("encoding"))) {
+      for (String line : sdpElement.getTextContent().split(REGEX_LINE_BREAK)) {
+        if (StringUtils.isNotBlank(line)) {
+          sdp.append(line).append(System.lineSeparator());
+        }
+      }
+      return sdp.toString();
+    }
+    for (Node node = sdpElement.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (node.getNodeType() != Node.ELEMENT_NODE || !"line".equals(node.getLocalName())) {
+        continue;
+      }
+      final String line = node.getTextContent();
+      if (StringUtils.isNotBlank(line)) {
+        sdp.append(line).append(System.lineSeparator());
+      }
+    }
     return sdp.toString();
   }
 
@@ -248,68 +365,149 @@ public class WebRtcPlugin implements Plugin {
     this.eventStream = unsafeStream.toSerialized();
   }
 
+  /**
+   * Writes an SDP into an {@code <sdp/>}, either as {@code <line/>}s or as one text node if
+   * {@code compact}.
+   */
+  private static void encodeSdp(@Nonnull final Element sdpElement,
+                                @Nonnull final String sdp,
+                                final boolean compact) {
+    final Document document = sdpElement.getOwnerDocument();
+    if (compact) {
+      sdpElement.setAttribute("encoding", ENCODING_TEXT);
+      sdpElement.setTextContent(sdp);
+      return;
+    }
+    for (String line : sdp.split(REGEX_LINE_BREAK)) {
+      final Node node = sdpElement.appendChild(document.createElement("line"));
+      node.setTextContent(line);
+    }
+  }
+
+  /**
+   * Sends an IQ and times its response with {@link MetricsPlugin}.
+   */
+  @Nonnull
+  private Completable sendIq(@Nonnull final String name, @Nonnull final Document iq) {
+    return getSession().getPluginManager().getPlugin(MetricsPlugin.class).timeIq(
+        name,
+        this.context.sendIq(new XmlWrapperStanza(iq)).getResponse().toSingle().toCompletable()
+    );
+  }
+
+  /**
+   * Checks if {@code peer} is known to support {@link #FEATURE_COMPACT_SDP} without waiting for
+   * the network. An unknown peer is assumed not to support it so that old clients still get
+   * {@code <line/>}s, while its disco#info is queried in the background for later IQs. The result
+   * of the query is cached for each {@link Jid}, including errors, which count as not supported.
+   */
+  private boolean supportsCompactSdp(@Nonnull final Jid peer) {
+    final Boolean cached = compactSdpPeers.get(peer);
+    if (cached != null) {
+      return cached;
+    }
+    if (probingPeers.add(peer)) {
+      getSession()
+          .getPluginManager()
+          .getPlugin(BasePlugin.class)
+          .queryDiscoInfo(peer)
+          .map(it -> it.getFeatures().contains(FEATURE_COMPACT_SDP))
+          .toObservable()
+          .first(false)
+          .onErrorReturnItem(false)
+          .subscribe(it -> {
+            compactSdpPeers.putIfAbsent(peer, it);
+            probingPeers.remove(peer);
+          });
+    }
+    return false;
+  }
+
+  /**
+   * Sends an SDP. The IQ is sent upon subscription.
+   */
   @Nonnull
   public Completable sendSdp(@Nonnull final Jid recipient,
                              @Nonnull final String id,
                              @Nonnull final SessionDescription sdp,
                              final boolean creating) {
-    final Document iq = Stanza.getIqTemplate(
-        Stanza.IqType.SET,
-        UUID.randomUUID().toString(),
-        getSession().getNegotiatedJid(),
-        recipient
-    );
-    final Element webrtcElement = (Element) iq.getDocumentElement().appendChild(
-        iq.createElementNS(XMLNS, "webrtc")
-    );
-    webrtcElement.setAttribute("id", id);
-    if (creating) {
-      webrtcElement.setAttribute("action", "create");
-    }
-    final Element sdpElement = (Element) webrtcElement.appendChild(iq.createElement("sdp"));
-    if (sdp.type != null) {
-      sdpElement.setAttribute("type", sdp.type.canonicalForm());
-    }
-    for (String line : sdp.description.split(REGEX_LINE_BREAK)) {
-      final Node node = sdpElement.appendChild(iq.createElement("line"));
-      node.setTextContent(line);
-    }
-    return this.context.sendIq(new XmlWrapperStanza(iq)).getResponse().toSingle().toCompletable();
+    return Completable.defer(() -> {
+      final boolean compact = supportsCompactSdp(recipient);
+      final Document iq = Stanza.getIqTemplate(
+          Stanza.IqType.SET,
+          UUID.randomUUID().toString(),
+          getSession().getNegotiatedJid(),
+          recipient
+      );
+      final Element webrtcElement = (Element) iq.getDocumentElement().appendChild(
+          iq.createElementNS(XMLNS, "webrtc")
+      );
+      webrtcElement.setAttribute("id", id);
+      if (creating) {
+        webrtcElement.setAttribute("action", "create");
+      }
+      final Element sdpElement = (Element) webrtcElement.appendChild(iq.createElement("sdp"));
+      if (sdp.type != null) {
+        sdpElement.setAttribute("type", sdp.type.canonicalForm());
+      }
+      encodeSdp(sdpElement, sdp.description, compact);
+      return sendIq("webrtc-sdp", iq);
+    });
   }
 
+  /**
+   * Sends {@link IceCandidate}s in one IQ. The IQ is sent upon subscription.
+   */
   @Nonnull
   public Completable sendIceCandidates(@Nonnull final Jid recipient,
                                        @Nonnull final String id,
                                        @Nonnull final Collection<IceCandidate> candidates) {
-    final Document iq = Stanza.getIqTemplate(
-        Stanza.IqType.SET,
-        UUID.randomUUID().toString(),
-        getSession().getNegotiatedJid(),
-        recipient
-    );
-    final Element webrtc = (Element) iq.getDocumentElement().appendChild(
-        iq.createElementNS(XMLNS, "webrtc")
-    );
-    webrtc.setAttribute("id", id);
-    for (IceCandidate candidate : candidates) {
-      final Element candidateElement = (Element) webrtc.appendChild(iq.createElement(
-          "ice-candidate")
+    return Completable.defer(() -> {
+      final boolean compact = supportsCompactSdp(recipient);
+      final Document iq = Stanza.getIqTemplate(
+          Stanza.IqType.SET,
+          UUID.randomUUID().toString(),
+          getSession().getNegotiatedJid(),
+          recipient
       );
-      candidateElement.setAttribute("sdpMLineIndex", Integer.toString(candidate.sdpMLineIndex));
-      if (StringUtils.isNotBlank(candidate.sdpMid)) {
-        candidateElement.setAttribute("sdpMid", candidate.sdpMid);
-      }
-      if (StringUtils.isNotBlank(candidate.sdp)) {
-        final Element sdpElement = (Element) candidateElement.appendChild(
-            iq.createElement("sdp")
+      final Element webrtc = (Element) iq.getDocumentElement().appendChild(
+          iq.createElementNS(XMLNS, "webrtc")
+      );
+      webrtc.setAttribute("id", id);
+      for (IceCandidate candidate : candidates) {
+        final Element candidateElement = (Element) webrtc.appendChild(iq.createElement(
+            "ice-candidate")
         );
-        for (String line : candidate.sdp.split(REGEX_LINE_BREAK)) {
-          final Node node = sdpElement.appendChild(iq.createElement("line"));
-          node.setTextContent(line);
+        candidateElement.setAttribute("sdpMLineIndex", Integer.toString(candidate.sdpMLineIndex));
+        if (StringUtils.isNotBlank(candidate.sdpMid)) {
+          candidateElement.setAttribute("sdpMid", candidate.sdpMid);
+        }
+        if (StringUtils.isNotBlank(candidate.sdp)) {
+          final Element sdpElement = (Element) candidateElement.appendChild(
+              iq.createElement("sdp")
+          );
+          encodeSdp(sdpElement, candidate.sdp, compact);
         }
       }
-    }
-    return this.context.sendIq(new XmlWrapperStanza(iq)).getResponse().toSingle().toCompletable();
+      return sendIq("webrtc-ice-candidates", iq);
+    });
+  }
+
+  /**
+   * Sends {@link IceCandidate}s as soon as they are gathered, also known as Trickle ICE.
+   * Candidates emitted by {@code candidates} within {@link #TRICKLE_WINDOW} milliseconds are sent
+   * in one IQ of at most {@link #TRICKLE_BATCH_SIZE} candidates. The batches are sent one after
+   * another in the order they are gathered.
+   */
+  @Nonnull
+  public Completable trickleIceCandidates(@Nonnull final Jid recipient,
+                                          @Nonnull final String id,
+                                          @Nonnull final Observable<IceCandidate> candidates) {
+    return candidates
+        .buffer(TRICKLE_WINDOW, TimeUnit.MILLISECONDS, TRICKLE_BATCH_SIZE)
+        .filter(it -> !it.isEmpty())
+        .concatMap(it -> sendIceCandidates(recipient, id, it).toObservable())
+        .ignoreElements();
   }
 
   @Nonnull
@@ -325,24 +523,91 @@ public class WebRtcPlugin implements Plugin {
     );
     webrtcElement.setAttribute("id", id);
     webrtcElement.setAttribute("action", "close");
-    return this.context.sendIq(new XmlWrapperStanza(iq)).getResponse().toSingle().toCompletable();
+    closedSessions.add(id);
+    final FlowableProcessor<SessionEvent> channel = channels.remove(id);
+    if (channel != null) {
+      channel.onComplete();
+    }
+    return sendIq("webrtc-close", iq);
   }
 
+  /**
+   * Gets a stream of all events of all WebRTC sessions. Each subscriber has a buffer of
+   * {@link #getEventBufferCapacity()} events. When a slow subscriber overflows it, the stalest
+   * {@link IceCandidateReceivedEvent}s are dropped while other events are always delivered.
+   */
   @Nonnull
   public Flowable<EventObject> getEventStream() {
-    return eventStream;
+    return eventStream.lift(new BoundedEventBuffer<>(
+        eventBufferCapacity,
+        IceCandidateReceivedEvent.class,
+        eventStatistics
+    ));
+  }
+
+  /**
+   * Gets a stream of events of only one WebRTC session. The stream completes when the session is
+   * closed by either end. If it is already closed, the stream only emits a
+   * {@link SessionClosingEvent} and completes. Buffered the same way as {@link #getEventStream()}.
+   */
+  @Nonnull
+  public Flowable<SessionEvent> getEventStream(@Nonnull final String id) {
+    FlowableProcessor<SessionEvent> channel = channels.get(id);
+    if (channel == null) {
+      final FlowableProcessor<SessionEvent> unsafeChannel = PublishProcessor.create();
+      final FlowableProcessor<SessionEvent> created = unsafeChannel.toSerialized();
+      channel = channels.putIfAbsent(id, created);
+      if (channel == null) {
+        channel = created;
+      }
+    }
+    // Checked after the channel is registered because emit() marks a session closed before
+    // removing its channel
+    if (closedSessions.contains(id)) {
+      channels.remove(id, channel);
+      return Flowable.just(new SessionClosingEvent(id));
+    }
+    return channel.lift(new BoundedEventBuffer<>(
+        eventBufferCapacity,
+        IceCandidateReceivedEvent.class,
+        eventStatistics
+    ));
+  }
+
+  /**
+   * Gets the counters of events enqueued, delivered and dropped by all event streams.
+   */
+  @Nonnull
+  public EventStatistics getEventStatistics() {
+    return eventStatistics;
+  }
+
+  public int getEventBufferCapacity() {
+    return eventBufferCapacity;
+  }
+
+  /**
+   * Sets the capacity of the buffer of each event subscriber. Only affects streams obtained
+   * afterwards.
+   * @throws IllegalArgumentException If {@code capacity} is not positive.
+   */
+  public void setEventBufferCapacity(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.eventBufferCapacity = capacity;
   }
 
   @Nonnull
   @Override
   public Set<Class<? extends Plugin>> getDependencies() {
-    return Collections.emptySet();
+    return new HashSet<>(Arrays.asList(BasePlugin.class, MetricsPlugin.class));
   }
 
   @Nonnull
   @Override
   public Set<String> getFeatures() {
-    return Collections.singleton(XMLNS);
+    return new HashSet<>(Arrays.asList(XMLNS, FEATURE_COMPACT_SDP));
   }
 
   @Nonnull
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link CallTimeline} keeps only the first occurrence of each event.
+ * {@code SystemClock.elapsedRealtime()} always returns {@code 0} in unit tests, so every recorded
+ * time is {@code 0}.
+ */
+public class CallTimelineTest {
+
+  private final CallTimeline timeline = new CallTimeline();
+
+  @Test
+  public void nothingIsRecordedInitially() {
+    for (CallTimeline.Event it : CallTimeline.Event.values()) {
+      Assert.assertEquals(-1, timeline.get(it));
+    }
+    Assert.assertEquals("", timeline.toString());
+  }
+
+  @Test
+  public void onlyFirstOccurrenceIsRecorded() {
+    Assert.assertTrue(timeline.record(CallTimeline.Event.SDP_SENT));
+    Assert.assertFalse(timeline.record(CallTimeline.Event.SDP_SENT));
+    Assert.assertEquals(0, timeline.get(CallTimeline.Event.SDP_SENT));
+    Assert.assertEquals(-1, timeline.get(CallTimeline.Event.SDP_ACKED));
+    Assert.assertTrue(timeline.record(CallTimeline.Event.SDP_ACKED));
+  }
+
+  @Test
+  public void concurrentRecordsHaveOneWinner() throws Exception {
+    final int threads = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger winners = new AtomicInteger();
+    try {
+      for (int it = 0; it < threads; ++it) {
+        executor.execute(() -> {
+          try {
+            start.await();
+          } catch (InterruptedException ex) {
+            return;
+          }
+          if (timeline.record(CallTimeline.Event.ICE_CONNECTED)) {
+            winners.incrementAndGet();
+          }
+        });
+      }
+      start.countDown();
+      executor.shutdown();
+      Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+    Assert.assertEquals(1, winners.get());
+  }
+
+  @Test
+  public void toStringListsRecordedEventsInOrder() {
+    timeline.record(CallTimeline.Event.ICE_CONNECTED);
+    timeline.record(CallTimeline.Event.SDP_RECEIVED);
+    Assert.assertEquals("sdp_received=0 ice_connected=0", timeline.toString());
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import chat.viska.xmpp.Connection;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Races {@link Connection}s to stand-in servers listening on the loopback interface. A server
+ * which is closed right after binding stands in for an unreachable one.
+ */
+public class ConnectionRacerTest {
+
+  private static final String DOMAIN = "example.com";
+  private static final String HOST = "127.0.0.1";
+
+  private final MemoryPreferences preferences = new MemoryPreferences();
+  private final ConnectionRacer racer = new ConnectionRacer(preferences, 1000);
+  private final List<ServerSocket> servers = new ArrayList<>();
+
+  @After
+  public void close() throws IOException {
+    for (ServerSocket it : servers) {
+      it.close();
+    }
+  }
+
+  @Nonnull
+  private ServerSocket listen() throws IOException {
+    final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    servers.add(server);
+    return server;
+  }
+
+  @Nonnull
+  private Connection reachable(@Nonnull final ServerSocket server) {
+    return new Connection(HOST, server.getLocalPort(), Connection.TlsMethod.DIRECT);
+  }
+
+  @Nonnull
+  private Connection unreachable() throws IOException {
+    final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    server.close();
+    return new Connection(HOST, server.getLocalPort(), Connection.TlsMethod.DIRECT);
+  }
+
+  /**
+   * Checks that nobody connected to a server within a few staggers.
+   */
+  private static void assertUntouched(@Nonnull final ServerSocket server) throws IOException {
+    server.setSoTimeout((int) (ConnectionRacer.STAGGER * 4));
+    try {
+      server.accept().close();
+      Assert.fail("Port " + server.getLocalPort() + " was probed.");
+    } catch (SocketTimeoutException ex) {
+      return;
+    }
+  }
+
+  @Nonnull
+  private Connection race(@Nonnull final Connection... connections) {
+    return racer
+        .race(DOMAIN, Arrays.asList(connections))
+        .test()
+        .awaitDone(10, TimeUnit.SECONDS)
+        .assertNoErrors()
+        .assertValueCount(1)
+        .values()
+        .get(0);
+  }
+
+  @Test
+  public void firstReachableWinsAndIsRemembered() throws Exception {
+    final Connection first = reachable(listen());
+    final ServerSocket late = listen();
+    Assert.assertSame(first, race(first, reachable(late)));
+    Assert.assertEquals(HOST + ':' + first.getPort(), preferences.getString(DOMAIN, null));
+    assertUntouched(late);
+  }
+
+  @Test
+  public void unreachableLosesToNext() throws Exception {
+    final Connection second = reachable(listen());
+    Assert.assertSame(second, race(unreachable(), second));
+  }
+
+  @Test
+  public void nextRoundStartsAfterFullRoundFails() throws Exception {
+    final List<Connection> connections = new ArrayList<>();
+    for (int it = 0; it < ConnectionRacer.MAX_CONTENDERS; ++it) {
+      connections.add(unreachable());
+    }
+    final Connection last = reachable(listen());
+    connections.add(last);
+    Assert.assertSame(last, race(connections.toArray(new Connection[connections.size()])));
+  }
+
+  @Test
+  public void failsFastWhenNothingIsReachable() throws Exception {
+    racer
+        .race(DOMAIN, Arrays.asList(unreachable(), unreachable()))
+        .test()
+        .awaitDone(10, TimeUnit.SECONDS)
+        .assertError(ConnectException.class);
+    Assert.assertNull(preferences.getString(DOMAIN, null));
+  }
+
+  @Test
+  public void rememberedWinnerIsNotProbed() throws Exception {
+    final ServerSocket remembered = listen();
+    final ServerSocket other = listen();
+    preferences.edit().putString(DOMAIN, HOST + ':' + remembered.getLocalPort()).apply();
+    final Connection winner = reachable(remembered);
+    Assert.assertSame(winner, race(reachable(other), winner));
+    assertUntouched(remembered);
+    assertUntouched(other);
+  }
+
+  @Test
+  public void forgottenWinnerIsRacedAgain() throws Exception {
+    final Connection dead = unreachable();
+    preferences.edit().putString(DOMAIN, HOST + ':' + dead.getPort()).apply();
+    racer.forget(DOMAIN);
+    final Connection alive = reachable(listen());
+    Assert.assertSame(alive, race(dead, alive));
+    Assert.assertEquals(HOST + ':' + alive.getPort(), preferences.getString(DOMAIN, null));
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import chat.viska.xmpp.Connection;
+import io.reactivex.Single;
+import io.reactivex.functions.BiFunction;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nonnull;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DnsCacheTest {
+
+  private static final String DOMAIN = "example.com";
+
+  private final MemoryPreferences preferences = new MemoryPreferences();
+  private final AtomicInteger queries = new AtomicInteger();
+  private final AtomicReference<Thread> queryThread = new AtomicReference<>();
+  private List<InetAddress> dns;
+  private volatile String resolvedHost = "xmpp.example.com";
+
+  private final BiFunction<String, List<InetAddress>, Single<List<Connection>>> resolver =
+      (domain, servers) -> Single.fromCallable(() -> {
+        queries.incrementAndGet();
+        queryThread.set(Thread.currentThread());
+        return Collections.singletonList(
+            new Connection(resolvedHost, 5222, Connection.TlsMethod.DIRECT)
+        );
+      });
+
+  @Nonnull
+  private static String getHost(@Nonnull final List<Connection> connections) {
+    Assert.assertEquals(1, connections.size());
+    return connections.get(0).getDomain();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    dns = Collections.singletonList(InetAddress.getByName("192.0.2.53"));
+  }
+
+  @Test
+  public void freshEntryIsServedWithoutQuerying() {
+    final DnsCache cache = new DnsCache(preferences, resolver);
+    Assert.assertEquals("xmpp.example.com", getHost(cache.query(DOMAIN, dns).blockingGet()));
+    Assert.assertEquals("xmpp.example.com", getHost(cache.query(DOMAIN, dns).blockingGet()));
+    Assert.assertEquals(1, queries.get());
+    Assert.assertNotSame(Thread.currentThread(), queryThread.get());
+  }
+
+  @Test
+  public void entriesSurviveRestarts() {
+    new DnsCache(preferences, resolver).query(DOMAIN, dns).blockingGet();
+    final DnsCache restarted = new DnsCache(preferences, resolver);
+    Assert.assertEquals("xmpp.example.com", getHost(restarted.query(DOMAIN, dns).blockingGet()));
+    Assert.assertEquals(1, queries.get());
+  }
+
+  @Test
+  public void entriesAreKeyedByDnsServers() throws Exception {
+    final DnsCache cache = new DnsCache(preferences, resolver);
+    cache.query(DOMAIN, dns).blockingGet();
+    cache.query(DOMAIN, Collections.singletonList(InetAddress.getByName("192.0.2.54")))
+        .blockingGet();
+    Assert.assertEquals(2, queries.get());
+  }
+
+  @Test
+  public void concurrentQueriesShareOneLookup() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final DnsCache cache = new DnsCache(preferences, (domain, servers) -> {
+      release.await();
+      return resolver.apply(domain, servers);
+    });
+    final Single<List<Connection>> first = cache.query(DOMAIN, dns);
+    final Single<List<Connection>> second = cache.query(DOMAIN, dns);
+    first.subscribe();
+    second.subscribe();
+    release.countDown();
+    Assert.assertEquals("xmpp.example.com", getHost(first.blockingGet()));
+    Assert.assertEquals("xmpp.example.com", getHost(second.blockingGet()));
+    Assert.assertEquals(1, queries.get());
+  }
+
+  @Test
+  public void staleEntryIsServedWhileRefreshedInBackground() throws Exception {
+    final JSONObject connection = new JSONObject();
+    connection.put("domain", "old.example.com");
+    connection.put("port", 5222);
+    connection.put("tls", Connection.TlsMethod.DIRECT.name());
+    final JSONObject entry = new JSONObject();
+    entry.put("expiry", System.currentTimeMillis() - 1000);
+    entry.put("connections", new JSONArray().put(connection));
+    preferences.edit().putString(DOMAIN + "@[192.0.2.53]", entry.toString()).apply();
+
+    final CountDownLatch release = new CountDownLatch(1);
+    final DnsCache cache = new DnsCache(preferences, (domain, servers) -> {
+      release.await();
+      return resolver.apply(domain, servers);
+    });
+    Assert.assertEquals("old.example.com", getHost(cache.query(DOMAIN, dns).blockingGet()));
+    release.countDown();
+
+    // The entry is persisted only after it is stored in memory
+    final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (!preferences.getString(DOMAIN + "@[192.0.2.53]", "").contains("xmpp.example.com")) {
+      Assert.assertTrue("Not refreshed in time", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    Assert.assertNotSame(Thread.currentThread(), queryThread.get());
+    Assert.assertEquals("xmpp.example.com", getHost(cache.query(DOMAIN, dns).blockingGet()));
+    Assert.assertEquals(1, queries.get());
+  }
+
+  @Test
+  public void invalidateForgetsTheDomain() {
+    final DnsCache cache = new DnsCache(preferences, resolver);
+    cache.query(DOMAIN, dns).blockingGet();
+    cache.invalidate(DOMAIN);
+    resolvedHost = "moved.example.com";
+    Assert.assertEquals("moved.example.com", getHost(cache.query(DOMAIN, dns).blockingGet()));
+    Assert.assertEquals(2, queries.get());
+  }
+}
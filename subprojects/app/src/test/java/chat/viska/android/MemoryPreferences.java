@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import android.content.SharedPreferences;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * In-memory {@link SharedPreferences} supporting only strings, as used by {@link DnsCache} and
+ * {@link ConnectionRacer}.
+ */
+class MemoryPreferences implements SharedPreferences {
+
+  private final Map<String, Object> values = new ConcurrentHashMap<>();
+
+  @Override
+  public Map<String, ?> getAll() {
+    return new HashMap<>(values);
+  }
+
+  @Nullable
+  @Override
+  public String getString(final String key, @Nullable final String defaultValue) {
+    final Object value = values.get(key);
+    return value == null ? defaultValue : (String) value;
+  }
+
+  @Nullable
+  @Override
+  public Set<String> getStringSet(final String key, @Nullable final Set<String> defaultValue) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public int getInt(final String key, final int defaultValue) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public long getLong(final String key, final long defaultValue) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public float getFloat(final String key, final float defaultValue) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean getBoolean(final String key, final boolean defaultValue) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean contains(final String key) {
+    return values.containsKey(key);
+  }
+
+  @Override
+  public Editor edit() {
+    final Map<String, Object> puts = new HashMap<>();
+    final Set<String> removals = new HashSet<>();
+    return new Editor() {
+
+      @Override
+      public Editor putString(final String key, @Nullable final String value) {
+        puts.put(key, value);
+        return this;
+      }
+
+      @Override
+      public Editor putStringSet(final String key, @Nullable final Set<String> values) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Editor putInt(final String key, final int value) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Editor putLong(final String key, final long value) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Editor putFloat(final String key, final float value) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Editor putBoolean(final String key, final boolean value) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Editor remove(final String key) {
+        removals.add(key);
+        return this;
+      }
+
+      @Override
+      public Editor clear() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public boolean commit() {
+        for (String it : removals) {
+          values.remove(it);
+        }
+        values.putAll(puts);
+        return true;
+      }
+
+      @Override
+      public void apply() {
+        commit();
+      }
+    };
+  }
+
+  @Override
+  public void registerOnSharedPreferenceChangeListener(
+      final OnSharedPreferenceChangeListener listener) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void unregisterOnSharedPreferenceChangeListener(
+      final OnSharedPreferenceChangeListener listener) {
+    throw new UnsupportedOperationException();
+  }
+}
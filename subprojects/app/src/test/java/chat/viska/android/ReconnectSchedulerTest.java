@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import chat.viska.xmpp.Jid;
+import io.reactivex.Completable;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.TestScheduler;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Drives a {@link ReconnectScheduler} with a {@link TestScheduler} standing in for the network
+ * callbacks and the clock. {@code SystemClock.elapsedRealtime()} always returns {@code 0} in unit
+ * tests, so a backoff ends exactly when its timer fires.
+ */
+public class ReconnectSchedulerTest {
+
+  private final Jid jid = new Jid("user@example.com");
+  private final TestScheduler clock = new TestScheduler();
+  private final AtomicInteger syncs = new AtomicInteger();
+  private final ReconnectScheduler scheduler = new ReconnectScheduler(
+      syncs::incrementAndGet,
+      clock
+  );
+
+  @After
+  public void dispose() {
+    scheduler.dispose();
+  }
+
+  private void fail() {
+    scheduler.schedule(jid, Completable.error(new Exception()), false).test();
+    clock.triggerActions();
+  }
+
+  @Test
+  public void networkChangesAreDebounced() {
+    scheduler.onNetworkChanged();
+    clock.advanceTimeBy(ReconnectScheduler.DEBOUNCE - 1, TimeUnit.MILLISECONDS);
+    scheduler.onNetworkChanged();
+    clock.advanceTimeBy(ReconnectScheduler.DEBOUNCE - 1, TimeUnit.MILLISECONDS);
+    Assert.assertEquals(0, syncs.get());
+
+    clock.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+    Assert.assertEquals(1, syncs.get());
+
+    clock.advanceTimeBy(ReconnectScheduler.DEBOUNCE * 10, TimeUnit.MILLISECONDS);
+    Assert.assertEquals(1, syncs.get());
+  }
+
+  @Test
+  public void failureBacksOffWithJitter() {
+    fail();
+    final long backoff = scheduler.getRecords().get(jid).getNextAttempt();
+    Assert.assertTrue(backoff >= ReconnectScheduler.MIN_BACKOFF / 2);
+    Assert.assertTrue(backoff <= ReconnectScheduler.MIN_BACKOFF);
+    Assert.assertTrue(scheduler.isBackingOff(jid));
+
+    clock.advanceTimeBy(backoff - 1, TimeUnit.MILLISECONDS);
+    Assert.assertEquals(0, syncs.get());
+    Assert.assertTrue(scheduler.isBackingOff(jid));
+
+    clock.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+    Assert.assertEquals(1, syncs.get());
+    Assert.assertFalse(scheduler.isBackingOff(jid));
+  }
+
+  @Test
+  public void backoffDoublesUpToMaximum() {
+    for (int failures = 1; failures <= 20; ++failures) {
+      fail();
+      final long backoff = scheduler.getRecords().get(jid).getNextAttempt();
+      final long ceiling = Math.min(
+          ReconnectScheduler.MAX_BACKOFF,
+          ReconnectScheduler.MIN_BACKOFF << (failures - 1)
+      );
+      Assert.assertEquals(failures, scheduler.getRecords().get(jid).getFailures());
+      Assert.assertTrue("Backoff " + backoff + " after " + failures, backoff >= ceiling / 2);
+      Assert.assertTrue("Backoff " + backoff + " after " + failures, backoff <= ceiling);
+      clock.advanceTimeBy(backoff, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Test
+  public void accountBackingOffIsSkipped() {
+    fail();
+    final AtomicInteger logins = new AtomicInteger();
+    final TestObserver<Void> observer = scheduler.schedule(
+        jid,
+        Completable.fromAction(logins::incrementAndGet),
+        false
+    ).test();
+    observer.assertComplete();
+    Assert.assertEquals(0, logins.get());
+    Assert.assertEquals(1, scheduler.getRecords().get(jid).getAttempts());
+  }
+
+  @Test
+  public void successClearsBackoff() {
+    fail();
+    clock.advanceTimeBy(ReconnectScheduler.MIN_BACKOFF, TimeUnit.MILLISECONDS);
+    final TestObserver<Void> observer = scheduler.schedule(
+        jid,
+        Completable.complete(),
+        false
+    ).test();
+    clock.triggerActions();
+    observer.assertComplete();
+    final ReconnectScheduler.Record record = scheduler.getRecords().get(jid);
+    Assert.assertEquals(0, record.getFailures());
+    Assert.assertEquals(2, record.getAttempts());
+    Assert.assertFalse(scheduler.isBackingOff(jid));
+  }
+
+  @Test
+  public void singleAccountIsNotSpread() {
+    final AtomicInteger logins = new AtomicInteger();
+    scheduler.schedule(jid, Completable.fromAction(logins::incrementAndGet), false).test();
+    clock.triggerActions();
+    Assert.assertEquals(1, logins.get());
+  }
+
+  @Test
+  public void accountsAreSpread() {
+    final int count = 50;
+    final AtomicInteger logins = new AtomicInteger();
+    for (int it = 0; it < count; ++it) {
+      scheduler.schedule(
+          new Jid("user" + it + "@example.com"),
+          Completable.fromAction(logins::incrementAndGet),
+          true
+      ).test();
+    }
+    clock.triggerActions();
+    final int immediate = logins.get();
+    Assert.assertTrue("All " + count + " logins ran at once", immediate < count);
+
+    clock.advanceTimeBy(ReconnectScheduler.SPREAD / 2, TimeUnit.MILLISECONDS);
+    final int halfway = logins.get();
+    Assert.assertTrue(halfway > immediate);
+    Assert.assertTrue(halfway < count);
+
+    clock.advanceTimeBy(ReconnectScheduler.SPREAD, TimeUnit.MILLISECONDS);
+    Assert.assertEquals(count, logins.get());
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.android;
+
+import chat.viska.commons.reactive.MutableReactiveObject;
+import chat.viska.xmpp.Jid;
+import chat.viska.xmpp.Session;
+import chat.viska.xmpp.StandardSession;
+import io.reactivex.disposables.Disposable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Hammers a {@link SessionRegistry} with concurrent logins, disposals and network changes, and
+ * checks that the events of each session arrive in order.
+ */
+public class SessionRegistryTest {
+
+  private static final int JID_COUNT = 8;
+  private static final int ITERATIONS = 20000;
+
+  private static class Counters {
+
+    final AtomicInteger added = new AtomicInteger();
+    final AtomicInteger removed = new AtomicInteger();
+    final List<SessionRegistry.ChangeEvent.Type> events = new ArrayList<>();
+  }
+
+  private final SessionRegistry registry = new SessionRegistry();
+  private final List<Jid> jids = new ArrayList<>();
+  private final Map<StandardSession, Counters> counters = new ConcurrentHashMap<>();
+  private final Map<StandardSession, MutableReactiveObject<Session.State>> states =
+      new ConcurrentHashMap<>();
+
+  @Nonnull
+  private StandardSession createSession() {
+    final StandardSession session = Mockito.mock(StandardSession.class);
+    final MutableReactiveObject<Session.State> state = new MutableReactiveObject<>(
+        Session.State.DISCONNECTED
+    );
+    Mockito.when(session.getState()).thenReturn(state);
+    states.put(session, state);
+    counters.put(session, new Counters());
+    return session;
+  }
+
+  private void changeState(@Nonnull final StandardSession session,
+                           @Nonnull final Session.State state) {
+    final MutableReactiveObject<Session.State> reactive = states.get(session);
+    synchronized (reactive) {
+      if (reactive.getValue() != Session.State.DISPOSED) {
+        reactive.changeValue(state);
+      }
+    }
+  }
+
+  private void login(@Nonnull final Random random) {
+    final Jid jid = jids.get(random.nextInt(jids.size()));
+    final StandardSession session = createSession();
+    if (random.nextBoolean()) {
+      registry.put(jid, session);
+    } else if (registry.add(jid, session) != null) {
+      return;
+    }
+    changeState(session, Session.State.ONLINE);
+  }
+
+  private void dispose(@Nonnull final Random random) {
+    final Jid jid = jids.get(random.nextInt(jids.size()));
+    final StandardSession session = registry.get(jid);
+    if (session == null) {
+      return;
+    }
+    if (random.nextBoolean()) {
+      changeState(session, Session.State.DISPOSED);
+    } else {
+      registry.remove(jid, session);
+    }
+  }
+
+  private void changeNetwork(@Nonnull final Random random) {
+    for (StandardSession it : registry.getSessions().values()) {
+      changeState(
+          it,
+          random.nextBoolean() ? Session.State.DISCONNECTED : Session.State.ONLINE
+      );
+    }
+  }
+
+  @Test
+  public void hammer() throws Exception {
+    for (int it = 0; it < JID_COUNT; ++it) {
+      jids.add(new Jid("user" + it + "@example.com"));
+    }
+    final Disposable subscription = registry.getChanges().subscribe(it -> {
+      final Counters counter = counters.get(it.getSource());
+      Assert.assertNotNull(counter);
+      Assert.assertTrue(jids.contains(it.getJid()));
+      counter.events.add(it.getType());
+      switch (it.getType()) {
+        case ADDED:
+          counter.added.incrementAndGet();
+          break;
+        case REMOVED:
+          counter.removed.incrementAndGet();
+          break;
+        default:
+          break;
+      }
+    });
+
+    final ExecutorService executor = Executors.newFixedThreadPool(6);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Future<?>> tasks = new ArrayList<>();
+    for (int thread = 0; thread < 6; ++thread) {
+      final int role = thread % 3;
+      final Random random = new Random(thread);
+      tasks.add(executor.submit(() -> {
+        start.await();
+        for (int it = 0; it < ITERATIONS; ++it) {
+          switch (role) {
+            case 0:
+              login(random);
+              break;
+            case 1:
+              dispose(random);
+              break;
+            default:
+              changeNetwork(random);
+              break;
+          }
+        }
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> it : tasks) {
+      it.get(1, TimeUnit.MINUTES);
+    }
+    executor.shutdown();
+    subscription.dispose();
+
+    final Set<StandardSession> registered = new HashSet<>(registry.getSessions().values());
+    Assert.assertEquals(registry.getSessions().size(), registered.size());
+    for (Map.Entry<StandardSession, Counters> it : counters.entrySet()) {
+      final int added = it.getValue().added.get();
+      final int removed = it.getValue().removed.get();
+      final List<SessionRegistry.ChangeEvent.Type> events = it.getValue().events;
+      Assert.assertTrue("ADDED signaled " + added + " times", added <= 1);
+      Assert.assertTrue("REMOVED signaled " + removed + " times", removed <= added);
+      if (!events.isEmpty()) {
+        Assert.assertEquals(
+            events.toString(),
+            SessionRegistry.ChangeEvent.Type.ADDED,
+            events.get(0)
+        );
+      }
+      final int removedAt = events.indexOf(SessionRegistry.ChangeEvent.Type.REMOVED);
+      if (removedAt >= 0) {
+        Assert.assertEquals("Events after REMOVED: " + events, events.size() - 1, removedAt);
+      }
+      if (registered.contains(it.getKey())) {
+        Assert.assertEquals(1, added);
+        Assert.assertEquals(0, removed);
+        Assert.assertNotEquals(
+            Session.State.DISPOSED,
+            it.getKey().getState().getValue()
+        );
+      } else {
+        Assert.assertEquals(added, removed);
+      }
+    }
+    for (Jid it : jids) {
+      final StandardSession session = registry.get(it);
+      if (session != null) {
+        Assert.assertSame(session, registry.getSessions().get(it));
+      }
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.xmpp.plugins.ping;
+
+import chat.viska.xmpp.Jid;
+import chat.viska.xmpp.Session;
+import chat.viska.xmpp.Stanza;
+import chat.viska.xmpp.StanzaErrorException;
+import chat.viska.xmpp.plugins.metrics.MetricsPlugin;
+import io.reactivex.Maybe;
+import java.util.concurrent.TimeoutException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Checks which replies {@link PingPlugin#ping()} takes as a live connection.
+ */
+public class PingPluginTest {
+
+  private final PingPlugin plugin = new PingPlugin();
+  private final Session.PluginContext context = Mockito.mock(
+      Session.PluginContext.class,
+      Mockito.RETURNS_DEEP_STUBS
+  );
+
+  @Before
+  public void apply() {
+    final Session session = Mockito.mock(Session.class, Mockito.RETURNS_DEEP_STUBS);
+    Mockito.when(session.getNegotiatedJid()).thenReturn(new Jid("user@example.com/phone"));
+    Mockito.when(session.getPluginManager().getPlugin(MetricsPlugin.class)).thenReturn(
+        new MetricsPlugin()
+    );
+    Mockito.when(context.getSession()).thenReturn(session);
+    plugin.onApplying(context);
+  }
+
+  @Test
+  public void resultProvesAlive() {
+    Mockito.when(context.sendIq(Mockito.any()).getResponse()).thenReturn(
+        Maybe.just(Mockito.mock(Stanza.class))
+    );
+    plugin.ping().test().assertNoErrors().assertValueCount(1);
+    Assert.assertTrue(plugin.getRoundTripTime() >= 0);
+  }
+
+  @Test
+  public void errorReplyProvesAlive() {
+    final StanzaErrorException error = new StanzaErrorException(
+        Mockito.mock(Stanza.class),
+        StanzaErrorException.Condition.SERVICE_UNAVAILABLE,
+        StanzaErrorException.Type.CANCEL,
+        "",
+        null,
+        null,
+        null
+    );
+    Mockito.when(context.sendIq(Mockito.any()).getResponse()).thenReturn(Maybe.error(error));
+    plugin.ping().test().assertNoErrors().assertValueCount(1);
+    Assert.assertTrue(plugin.getRoundTripTime() >= 0);
+  }
+
+  @Test
+  public void missingReplyFails() {
+    Mockito.when(context.sendIq(Mockito.any()).getResponse()).thenReturn(
+        Maybe.error(new TimeoutException())
+    );
+    plugin.ping().test().assertError(TimeoutException.class);
+    Assert.assertEquals(-1, plugin.getRoundTripTime());
+  }
+}
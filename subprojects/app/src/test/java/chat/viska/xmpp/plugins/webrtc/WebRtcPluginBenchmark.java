@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.xmpp.plugins.webrtc;
+
+import chat.viska.commons.DomUtils;
+import chat.viska.xmpp.Stanza;
+import chat.viska.xmpp.XmlWrapperStanza;
+import io.reactivex.Observable;
+import io.reactivex.processors.FlowableProcessor;
+import io.reactivex.processors.PublishProcessor;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EventObject;
+import java.util.List;
+import java.util.Locale;
+import javax.annotation.Nonnull;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * Compares the single-pass decoder of {@link WebRtcPlugin} with the DOM list and
+ * {@link Observable} based decoder it replaced, in events per second and bytes allocated per
+ * stanza. The results are printed to the standard output.
+ */
+public class WebRtcPluginBenchmark {
+
+  private static final int WARMUP = 5000;
+  private static final int STANZAS = 20000;
+  private static final int SDP_LINES = 40;
+  private static final int CANDIDATES = 8;
+
+  /**
+   * Decoder of {@link WebRtcPlugin} before it was made single-pass.
+   */
+  private static class LegacyDecoder {
+
+    final FlowableProcessor<EventObject> eventStream = PublishProcessor.<EventObject>create()
+        .toSerialized();
+    final WebRtcPlugin plugin = new WebRtcPlugin();
+
+    void consumeIq(@Nonnull final Stanza iq) throws Exception {
+      final Element webrtcElement = (Element) iq.getXml().getDocumentElement().getFirstChild();
+      final String id = webrtcElement.getAttribute("id");
+      final boolean creating = "create".equals(webrtcElement.getAttribute("action"));
+      for (Node node : DomUtils.convertToList(webrtcElement.getChildNodes())) {
+        if ("sdp".equals(node.getLocalName())) {
+          final SessionDescription.Type type = SessionDescription.Type.fromCanonicalForm(
+              ((Element) node).getAttribute("type")
+          );
+          eventStream.onNext(plugin.new SdpReceivedEvent(
+              new SessionDescription(type, convertSdpElementsToString(node)),
+              id,
+              iq.getSender(),
+              creating
+          ));
+        } else if ("ice-candidate".equals(node.getLocalName())) {
+          consumeIceCandidate((Element) node, id, creating);
+        }
+      }
+    }
+
+    private void consumeIceCandidate(@Nonnull final Element iceCandidateElement,
+                                     @Nonnull final String id,
+                                     final boolean creating) {
+      final Node sdpElement = Observable.fromIterable(
+          DomUtils.convertToList(iceCandidateElement.getChildNodes())
+      ).filter(it -> "sdp".equals(it.getLocalName())).firstElement().blockingGet();
+      final String sdp = sdpElement == null ? "" : convertSdpElementsToString(sdpElement);
+      eventStream.onNext(plugin.new IceCandidateReceivedEvent(
+          new IceCandidate(
+              iceCandidateElement.getAttribute("sdpMid"),
+              Integer.parseInt(iceCandidateElement.getAttribute("sdpMLineIndex")),
+              sdp.trim()
+          ),
+          id,
+          creating
+      ));
+    }
+
+    @Nonnull
+    private String convertSdpElementsToString(@Nonnull final Node sdpElement) {
+      final StringBuilder sdp = new StringBuilder();
+      Observable.fromIterable(
+          DomUtils.convertToList(sdpElement.getChildNodes())
+      ).filter(
+          it -> "line".equals(it.getLocalName())
+      ).filter(
+          it -> StringUtils.isNotBlank(it.getTextContent())
+      ).map(Node::getTextContent).subscribe(it -> {
+        sdp.append(it);
+        sdp.append(System.lineSeparator());
+      });
+      return sdp.toString();
+    }
+  }
+
+  private interface Decoder {
+
+    void consume(@Nonnull Stanza iq) throws Exception;
+  }
+
+  @Nonnull
+  private static Stanza createStanza() throws Exception {
+    final StringBuilder xml = new StringBuilder()
+        .append("<iq xmlns=\"jabber:client\" type=\"set\" id=\"1\"")
+        .append(" from=\"jon@westeros.com/123\" to=\"dany@essos.com/456\">")
+        .append("<webrtc xmlns=\"").append(WebRtcPlugin.XMLNS)
+        .append("\" id=\"session\" action=\"create\">")
+        .append("<sdp type=\"offer\">");
+    for (int it = 0; it < SDP_LINES; ++it) {
+      xml.append("<line>a=attribute-").append(it).append(":value</line>");
+    }
+    xml.append("</sdp>");
+    for (int it = 0; it < CANDIDATES; ++it) {
+      xml.append("<ice-candidate sdpMid=\"audio\" sdpMLineIndex=\"0\"><sdp><line>")
+          .append("candidate:").append(it).append(" 1 udp 2122260223 192.168.0.")
+          .append(it).append(" 5000").append(it).append(" typ host")
+          .append("</line></sdp></ice-candidate>");
+    }
+    xml.append("</webrtc></iq>");
+    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    final Document document = factory.newDocumentBuilder().parse(
+        new ByteArrayInputStream(xml.toString().getBytes(StandardCharsets.UTF_8))
+    );
+    return new XmlWrapperStanza(document);
+  }
+
+  private static long getAllocatedBytes() {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+          Thread.currentThread().getId()
+      );
+    }
+    return -1;
+  }
+
+  /**
+   * Runs a decoder and prints its throughput.
+   * @return Bytes allocated per stanza, or a negative number if the JVM cannot tell.
+   */
+  private static double run(@Nonnull final String name,
+                            @Nonnull final Decoder decoder,
+                            @Nonnull final Stanza iq) throws Exception {
+    for (int it = 0; it < WARMUP; ++it) {
+      decoder.consume(iq);
+    }
+    final long allocatedBefore = getAllocatedBytes();
+    final long start = System.nanoTime();
+    for (int it = 0; it < STANZAS; ++it) {
+      decoder.consume(iq);
+    }
+    final long duration = System.nanoTime() - start;
+    final long allocatedAfter = getAllocatedBytes();
+    final double eventsPerSecond = (double) STANZAS * (CANDIDATES + 1) * 1e9 / duration;
+    final double bytesPerStanza = allocatedBefore < 0
+        ? -1
+        : (double) (allocatedAfter - allocatedBefore) / STANZAS;
+    System.out.println(String.format(
+        Locale.ROOT,
+        "%s: %.0f events/s, %.0f bytes/stanza",
+        name,
+        eventsPerSecond,
+        bytesPerStanza
+    ));
+    return bytesPerStanza;
+  }
+
+  @Nonnull
+  private static List<String> describe(@Nonnull final List<EventObject> events) {
+    final List<String> result = new ArrayList<>();
+    for (EventObject it : events) {
+      if (it instanceof WebRtcPlugin.SdpReceivedEvent) {
+        final WebRtcPlugin.SdpReceivedEvent event = (WebRtcPlugin.SdpReceivedEvent) it;
+        result.add(event.getId() + ' ' + event.getRemoteJid() + ' ' + event.isCreating() + ' '
+            + event.getSdp().type + ' ' + event.getSdp().description);
+      } else if (it instanceof WebRtcPlugin.IceCandidateReceivedEvent) {
+        final WebRtcPlugin.IceCandidateReceivedEvent event =
+            (WebRtcPlugin.IceCandidateReceivedEvent) it;
+        result.add(event.getId() + ' ' + event.getCandidate().sdpMid + ' '
+            + event.getCandidate().sdpMLineIndex + ' ' + event.getCandidate().sdp);
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void compare() throws Exception {
+    final Stanza iq = createStanza();
+    final WebRtcPlugin plugin = new WebRtcPlugin();
+    final LegacyDecoder legacy = new LegacyDecoder();
+
+    final List<EventObject> singlePassEvents = new ArrayList<>();
+    final List<EventObject> legacyEvents = new ArrayList<>();
+    plugin.getEventStream().take(CANDIDATES + 1).subscribe(singlePassEvents::add);
+    legacy.eventStream.take(CANDIDATES + 1).subscribe(legacyEvents::add);
+    plugin.consumeIq(iq);
+    legacy.consumeIq(iq);
+    Assert.assertEquals(CANDIDATES + 1, singlePassEvents.size());
+    Assert.assertEquals(describe(legacyEvents), describe(singlePassEvents));
+
+    final double legacyBytes = run("DOM lists", legacy::consumeIq, iq);
+    final double singlePassBytes = run("Single pass", plugin::consumeIq, iq);
+    if (legacyBytes >= 0) {
+      Assert.assertTrue(singlePassBytes < legacyBytes);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Kai-Chung Yan (殷啟聰)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package chat.viska.xmpp.plugins.webrtc;
+
+import chat.viska.xmpp.Stanza;
+import chat.viska.xmpp.XmlWrapperStanza;
+import io.reactivex.subscribers.TestSubscriber;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import javax.annotation.Nonnull;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Checks the lifecycle of the per-session event channels of {@link WebRtcPlugin}.
+ */
+public class WebRtcPluginTest {
+
+  private final WebRtcPlugin plugin = new WebRtcPlugin();
+
+  @Nonnull
+  private static Stanza createClosing(@Nonnull final String id) throws Exception {
+    final String xml = "<iq xmlns=\"jabber:client\" type=\"set\" id=\"1\""
+        + " from=\"jon@westeros.com/123\" to=\"dany@essos.com/456\">"
+        + "<webrtc xmlns=\"" + WebRtcPlugin.XMLNS + "\" id=\"" + id + "\" action=\"close\"/>"
+        + "</iq>";
+    final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    final Document document = factory.newDocumentBuilder().parse(
+        new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))
+    );
+    return new XmlWrapperStanza(document);
+  }
+
+  @Test
+  public void closeAfterSubscribe() throws Exception {
+    final TestSubscriber<WebRtcPlugin.SessionEvent> subscriber = plugin
+        .getEventStream("session")
+        .test();
+    plugin.consumeIq(createClosing("session"));
+    subscriber.assertValueCount(1).assertComplete();
+    Assert.assertTrue(subscriber.values().get(0) instanceof WebRtcPlugin.SessionClosingEvent);
+  }
+
+  @Test
+  public void closeBeforeSubscribe() throws Exception {
+    plugin.consumeIq(createClosing("session"));
+    final TestSubscriber<WebRtcPlugin.SessionEvent> subscriber = plugin
+        .getEventStream("session")
+        .test();
+    subscriber.assertValueCount(1).assertComplete();
+    Assert.assertTrue(subscriber.values().get(0) instanceof WebRtcPlugin.SessionClosingEvent);
+    Assert.assertEquals("session", subscriber.values().get(0).getId());
+  }
+
+  @Test
+  public void otherSessionsStayOpen() throws Exception {
+    plugin.consumeIq(createClosing("closed"));
+    plugin.getEventStream("open").test().assertNoValues().assertNotComplete();
+  }
+
+  @Test
+  public void closedSessionsAreBounded() throws Exception {
+    plugin.consumeIq(createClosing("first"));
+    for (int it = 0; it < WebRtcPlugin.MAX_CLOSED_SESSIONS; ++it) {
+      plugin.consumeIq(createClosing("session" + it));
+    }
+    plugin.getEventStream("first").test().assertNoValues().assertNotComplete();
+  }
+}